@@ -0,0 +1,144 @@
+package android.httpimage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+
+import android.net.Uri;
+
+
+/**
+ * Transport over the apache HTTP client bundled with Android. support HTTP and HTTPS request.
+ *
+ * @author zonghai@gmail.com
+ */
+public class ApacheTransport implements Transport {
+
+    private final HttpClient mHttpClient;
+
+
+    public ApacheTransport() {
+        this(createHttpClient());
+    }
+
+
+    public ApacheTransport(HttpClient httpClient) {
+        mHttpClient = httpClient;
+    }
+
+
+    @Override
+    public Response execute(Uri uri, Map<String, String> headers) throws IOException {
+        HttpGet httpGet = new HttpGet(uri.toString());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            httpGet.addHeader(header.getKey(), header.getValue());
+        }
+        return new ApacheResponse(mHttpClient.execute(httpGet));
+    }
+
+
+    /**
+     * Create a thread-safe client. This client does not do redirecting, to allow us to capture
+     * correct "error" codes.
+     *
+     * @return HttpClient
+     */
+    public static DefaultHttpClient createHttpClient() {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpProtocolParams.setUseExpectContinue(params, true);
+        // Turn off stale checking. Our connections break all the time anyway,
+        // and it's not worth it to pay the penalty of checking every time.
+        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+
+        // Default connection and socket timeout of 30 seconds. Tweak to taste.
+        HttpConnectionParams.setConnectionTimeout(params, 10*1000);
+        HttpConnectionParams.setSoTimeout(params, 20*1000);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+
+        ConnManagerParams.setTimeout(params, 5 * 1000);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(50));
+        ConnManagerParams.setMaxTotalConnections(params, 200);
+
+        // Sets up the http part of the service.
+        final SchemeRegistry supportedSchemes = new SchemeRegistry();
+
+        // Register the "http" protocol scheme, it is required
+        // by the default operator to look up socket factories.
+        final SocketFactory sf = PlainSocketFactory.getSocketFactory();
+        supportedSchemes.register(new Scheme("http", sf, 80));
+        supportedSchemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        final ThreadSafeClientConnManager ccm = new ThreadSafeClientConnManager(params,
+                supportedSchemes);
+
+        DefaultHttpClient httpClient = new DefaultHttpClient(ccm, params);
+
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(3, true));
+
+        return httpClient;
+    }
+
+
+    private static class ApacheResponse implements Response {
+
+        private final HttpResponse mResponse;
+
+        ApacheResponse(HttpResponse response) {
+            mResponse = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mResponse.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            Header header = mResponse.getFirstHeader(name);
+            return (header != null) ? header.getValue() : null;
+        }
+
+        @Override
+        public long getContentLength() {
+            HttpEntity entity = mResponse.getEntity();
+            return (entity != null) ? entity.getContentLength() : -1;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            HttpEntity entity = mResponse.getEntity();
+            return (entity != null) ? entity.getContent() : null;
+        }
+
+        @Override
+        public void close() {
+            HttpEntity entity = mResponse.getEntity();
+            if (entity != null) {
+                try { entity.consumeContent(); } catch (IOException e) {}
+            }
+        }
+    }
+}
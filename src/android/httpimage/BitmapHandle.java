@@ -0,0 +1,70 @@
+package android.httpimage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Reference counted bitmap handed out by a MemoryCache.
+ * <p>
+ * The cache holds one reference for as long as the bitmap is cached, and every holder that
+ * displays the bitmap (e.g. an ImageView bound by HttpImageManager) holds another one. Once the
+ * last reference is released the cache returns the bitmap to its BitmapPool or recycles it, so
+ * pixel memory is reclaimed right away instead of waiting for the GC.
+ *
+ * @author abezzarg@gmail.com
+ */
+public final class BitmapHandle {
+
+    private final Bitmap mBitmap;
+    private final BitmapRecycler mOwner;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+
+    BitmapHandle(Bitmap bitmap, BitmapRecycler owner) {
+        mBitmap = bitmap;
+        mOwner = owner;
+    }
+
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+
+    /**
+     * Take a reference on the bitmap.
+     * @return false if the bitmap was already released, it must not be used then
+     */
+    public boolean acquire() {
+        for (;;) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Drop a reference taken with {@link #acquire()}, the bitmap must not be used afterwards.
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mOwner.onReleased(mBitmap);
+        }
+        else if (count < 0) {
+            throw new IllegalStateException("bitmap handle released too many times");
+        }
+    }
+
+
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+}
@@ -0,0 +1,218 @@
+package android.httpimage;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+
+/**
+ * Pool of bitmaps evicted from the memory cache, reused by BitmapUtil as
+ * BitmapFactory.Options.inBitmap so decoding does not allocate fresh pixel memory.
+ * <p>
+ * Bitmaps are bucketed by their allocation size. From KitKat on any pooled bitmap at least as
+ * large as the decoded one can be reused, before that the decoder requires the exact same
+ * dimensions and config. When the pool goes over its byte cap the largest bitmaps, which are
+ * the least likely to be reused, are dropped first.
+ * <p>
+ * Only bitmaps that are no longer displayed may be handed to the pool.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class BitmapPool {
+
+    private static final String TAG = BitmapPool.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** a pooled bitmap more than this factor larger than the request is not handed out */
+    private static final int MAX_OVERSIZE_FACTOR = 2;
+
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets = new TreeMap<Integer, ArrayList<Bitmap>>();
+    private int mMaxSize;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+
+    /**
+     * @param maxBytes max number of bytes of pixels held by the pool
+     */
+    public BitmapPool(int maxBytes) {
+        mMaxSize = maxBytes;
+    }
+
+
+    /**
+     * @return true if the running platform can decode into an existing bitmap
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+
+    /**
+     * Offer a bitmap to the pool. Immutable or recycled bitmaps are ignored.
+     * @param bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = allocationSizeOf(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mSize += size;
+        mPutCount++;
+
+        trimToSize(mMaxSize);
+    }
+
+
+    /**
+     * Take a bitmap the decoder can reuse to hold a width x height image.
+     * @return null if no compatible bitmap is pooled
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported()) {
+            return null;
+        }
+        int needed = width * height * bytesPerPixel(config);
+        Bitmap result = null;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Map.Entry<Integer, ArrayList<Bitmap>> e = mBuckets.ceilingEntry(needed);
+            if (e != null && e.getKey() <= needed * MAX_OVERSIZE_FACTOR) {
+                result = take(e.getKey(), e.getValue(), e.getValue().size() - 1);
+            }
+        }
+        else {
+            ArrayList<Bitmap> bucket = mBuckets.get(needed);
+            if (bucket != null) {
+                for (int i = bucket.size() - 1; i >= 0; i--) {
+                    Bitmap b = bucket.get(i);
+                    if (b.getWidth() == width && b.getHeight() == height && b.getConfig() == config) {
+                        result = take(needed, bucket, i);
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (result != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        if(DEBUG) Log.v(TAG, "[get] " + width + "x" + height + " " + (result != null ? "hit" : "miss"));
+        return result;
+    }
+
+
+    private Bitmap take(int size, ArrayList<Bitmap> bucket, int index) {
+        Bitmap b = bucket.remove(index);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(size);
+        }
+        mSize -= size;
+        return b;
+    }
+
+
+    /**
+     * Drop the largest bitmaps until the pool holds at most maxBytes.
+     * @param maxBytes
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        while (mSize > maxBytes && !mBuckets.isEmpty()) {
+            Map.Entry<Integer, ArrayList<Bitmap>> e = mBuckets.lastEntry();
+            ArrayList<Bitmap> bucket = e.getValue();
+            take(e.getKey(), bucket, bucket.size() - 1).recycle();
+            mEvictionCount++;
+        }
+    }
+
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+
+    /**
+     * Release memory in answer to ComponentCallbacks2.onTrimMemory(), see MemoryBitmapCache.trim().
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* levels
+     */
+    public synchronized void trim(int level) {
+        trimToSize((int) (mMaxSize * MemoryBitmapCache.trimRatio(level)));
+    }
+
+
+    public synchronized void setMaxSize(int maxBytes) {
+        mMaxSize = maxBytes;
+        trimToSize(mMaxSize);
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "[size=" + mSize + "/" + mMaxSize + ", hits=" + mHitCount + ", misses=" + mMissCount
+                + ", puts=" + mPutCount + ", evictions=" + mEvictionCount + "]";
+    }
+
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static int allocationSizeOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return MemoryBitmapCache.sizeOf(bitmap);
+    }
+
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 2;
+    }
+}
@@ -0,0 +1,46 @@
+package android.httpimage;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * What a memory cache does with a bitmap once the last reference of its BitmapHandle is released:
+ * hand it to a BitmapPool, recycle it, or leave it to the GC.
+ *
+ * @author abezzarg@gmail.com
+ */
+final class BitmapRecycler {
+
+    private volatile BitmapPool mPool;
+    private volatile boolean mRecycleOnRelease;
+
+
+    void setBitmapPool(BitmapPool pool) {
+        mPool = pool;
+    }
+
+
+    BitmapPool getBitmapPool() {
+        return mPool;
+    }
+
+
+    void setRecycleOnRelease(boolean recycle) {
+        mRecycleOnRelease = recycle;
+    }
+
+
+    /**
+     * Called by a BitmapHandle when its last reference is released.
+     */
+    void onReleased(Bitmap data) {
+        BitmapPool pool = mPool;
+        if (pool != null) {
+            pool.put(data);
+        }
+        else if (mRecycleOnRelease) {
+            data.recycle();
+        }
+        // otherwise we are only relying on GC to reclaim the memory
+    }
+}
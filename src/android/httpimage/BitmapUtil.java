@@ -1,15 +1,18 @@
 package android.httpimage;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
+import android.os.Build;
 import android.util.Log;
 
 
@@ -26,6 +29,41 @@ public class BitmapUtil {
     private static String TAG = BitmapUtil.class.getSimpleName();
     private static boolean DEBUG = false;
 
+    /** size of the scratch buffer of the decoder, as allocated by BitmapFactory when not given one */
+    private static final int DECODE_TEMP_STORAGE_SIZE = 16 * 1024;
+    private static final int FILE_BUFFER_SIZE = 8 * 1024;
+
+    private static volatile BitmapPool sBitmapPool;
+    private static volatile ByteArrayPool sByteArrayPool = new ByteArrayPool(ByteArrayPool.DEFAULT_MAX_SIZE);
+
+
+    /**
+     * Pool from which decodes take a bitmap to decode into.
+     * @param pool null to always allocate new bitmaps
+     */
+    public static void setBitmapPool(BitmapPool pool) {
+        sBitmapPool = pool;
+    }
+
+
+    public static BitmapPool getBitmapPool() {
+        return sBitmapPool;
+    }
+
+
+    /**
+     * Pool of the transient buffers used to read and decode images.
+     * @param pool never null
+     */
+    public static void setByteArrayPool(ByteArrayPool pool) {
+        sByteArrayPool = pool;
+    }
+
+
+    public static ByteArrayPool getByteArrayPool() {
+        return sByteArrayPool;
+    }
+
     public static double getRatio(InputStream is){
     	BitmapFactory.Options options = new BitmapFactory.Options();
     	Rect outPadding = new Rect();
@@ -49,28 +87,154 @@ public class BitmapUtil {
     }
     
     public static Bitmap decodeByteArray( byte[] bytes, int maxNumOfPixels) {
+        return decodeByteArray(bytes, maxNumOfPixels, 0, 0);
+    }
+    
+    
+    /**
+     * Decode an image for display at the given size: it is subsampled while it stays at least as
+     * large as the target, then scaled down to just cover it.
+     * @param targetWidth 0 if unconstrained
+     * @param targetHeight 0 if unconstrained
+     */
+    public static Bitmap decodeByteArray( byte[] bytes, int maxNumOfPixels, int targetWidth, int targetHeight) {
         
         if (bytes == null) return null;
         
+        return decodeByteArray(bytes, bytes.length, maxNumOfPixels, targetWidth, targetHeight);
+    }
+    
+    
+    /**
+     * Decode the first length bytes of an array, e.g. a pooled buffer.
+     * @see #decodeByteArray(byte[], int, int, int)
+     */
+    public static Bitmap decodeByteArray( byte[] bytes, int length, int maxNumOfPixels, int targetWidth, int targetHeight) {
+        return decode(new ByteArraySource(bytes, length), maxNumOfPixels, targetWidth, targetHeight);
+    }
+    
+    
+    /**
+     * What an image is decoded from. Each pass of a decode reads it again from the start.
+     */
+    private static abstract class ImageSource {
+        abstract Bitmap decode(BitmapFactory.Options option) throws IOException;
+    }
+    
+    
+    private static final class ByteArraySource extends ImageSource {
+        private final byte[] mBytes;
+        private final int mLength;
+        
+        ByteArraySource(byte[] bytes, int length) {
+            mBytes = bytes;
+            mLength = length;
+        }
+        
+        @Override
+        Bitmap decode(BitmapFactory.Options option) {
+            return BitmapFactory.decodeByteArray(mBytes, 0, mLength, option);
+        }
+    }
+    
+    
+    /**
+     * Decoded as it is read, never held whole in memory.
+     */
+    private static final class FileSource extends ImageSource {
+        private final String mPath;
+        
+        FileSource(String path) {
+            mPath = path;
+        }
+        
+        @Override
+        Bitmap decode(BitmapFactory.Options option) throws IOException {
+            // not BitmapFactory.decodeFile(), it swallows the error of a pooled bitmap that does not fit
+            InputStream is = new BufferedInputStream(new FileInputStream(mPath), FILE_BUFFER_SIZE);
+            try {
+                return BitmapFactory.decodeStream(is, null, option);
+            }
+            finally {
+                try { is.close(); } catch (IOException e) {}
+            }
+        }
+    }
+    
+    
+    /**
+     * Decode from source, sampled and scaled for the target size.
+     * @see #decodeByteArray(byte[], int, int, int)
+     */
+    private static Bitmap decode(ImageSource source, int maxNumOfPixels, int targetWidth, int targetHeight) {
+        
+        ByteArrayPool bytePool = sByteArrayPool;
+        BitmapFactory.Options option = new BitmapFactory.Options();
+        option.inTempStorage = bytePool.get(DECODE_TEMP_STORAGE_SIZE);
         try {
-            BitmapFactory.Options option = new BitmapFactory.Options();
             // Decode only image size
             option.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, option);
+            source.decode(option);
 
             option.inJustDecodeBounds = false;
             option.inPreferredConfig = (HttpImageManager.keepAlpha)?Bitmap.Config.ARGB_8888:Bitmap.Config.RGB_565;
 //            option.inPreferredConfig = Bitmap.Config.RGB_565;
-            option.inSampleSize = computeSampleSize(option, UNCONSTRAINED, maxNumOfPixels);
-            if(DEBUG) Log.v(TAG, "[decodeByteArray] inSampleSize=" + option.inSampleSize);
+            option.inSampleSize = Math.max(computeSampleSize(option, UNCONSTRAINED, maxNumOfPixels),
+                    computeTargetSampleSize(option, targetWidth, targetHeight));
+            if(DEBUG) Log.v(TAG, "[decode] inSampleSize=" + option.inSampleSize);
 
-            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, option);
+            Bitmap bitmap;
+            BitmapPool pool = sBitmapPool;
+            if (pool != null && BitmapPool.isSupported()) {
+                bitmap = decodeInto(source, option, pool);
+            } else {
+                bitmap = source.decode(option);
+            }
+            return scaleToCover(bitmap, targetWidth, targetHeight, true);
 
+        } catch (IOException e) {
+            if(DEBUG) Log.w(TAG, e);
+            return null;
         } catch (OutOfMemoryError oom) {
         	if(DEBUG) Log.w(TAG, oom);
-//            HttpImageManager.getInstance().emptyCache();
+        	// pooled bitmaps and buffers are the memory we can give back without touching what is displayed
+        	BitmapPool pool = sBitmapPool;
+        	if (pool != null) pool.clear();
+        	bytePool.clear();
             return null;
         }
+        finally {
+            bytePool.put(option.inTempStorage);
+        }
+    }
+    
+    
+    /**
+     * Decode reusing a pooled bitmap when a compatible one is available. The decoded bitmap is
+     * mutable so that it can go back to the pool once evicted from the memory cache.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Bitmap decodeInto(ImageSource source, BitmapFactory.Options option, BitmapPool pool) throws IOException {
+        option.inMutable = true;
+
+        // before KitKat the decoder can only reuse a bitmap of the exact same size, without subsampling
+        if (option.inSampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int width = (option.outWidth + option.inSampleSize - 1) / option.inSampleSize;
+            int height = (option.outHeight + option.inSampleSize - 1) / option.inSampleSize;
+            option.inBitmap = pool.get(width, height, option.inPreferredConfig);
+        }
+
+        if (option.inBitmap != null) {
+            try {
+                return source.decode(option);
+            } catch (IllegalArgumentException e) {
+                // the pooled bitmap did not fit after all, give it back and allocate
+                if(DEBUG) Log.w(TAG, "[decodeInto] could not reuse bitmap", e);
+                pool.put(option.inBitmap);
+                option.inBitmap = null;
+            }
+        }
+        return source.decode(option);
     }
     
     
@@ -79,7 +243,7 @@ public class BitmapUtil {
         if (is == null) return null;
         
         try {
-            return decodeByteArray( readStream(is), maxNumOfPixels);
+            return decodeStream(is, 0, maxNumOfPixels, 0, 0);
 
         } catch (IOException e) {
         	if(DEBUG)Log.w(TAG, e);
@@ -89,11 +253,33 @@ public class BitmapUtil {
     
     
     public static Bitmap decodeFile(String filePath, int maxNumOfPixels) {
+        return decodeFile(filePath, maxNumOfPixels, 0, 0);
+    }
+    
+    
+    /**
+     * Decode a file, e.g. a download, as it is read without loading it whole in memory.
+     * @see #decodeByteArray(byte[], int, int, int)
+     */
+    public static Bitmap decodeFile(String filePath, int maxNumOfPixels, int targetWidth, int targetHeight) {
+        return decode(new FileSource(filePath), maxNumOfPixels, targetWidth, targetHeight);
+    }
+    
+    
+    /**
+     * Decode a persisted file, e.g. on a disk hit. A file that fits in an array of the
+     * ByteArrayPool is read at once into one, a larger one is decoded as it is read.
+     */
+    static Bitmap decodeFilePooled(File file, int maxNumOfPixels, int targetWidth, int targetHeight) {
+        long length = file.length();
+        if (length == 0 || length > sByteArrayPool.getMaxArraySize()) {
+            return decodeFile(file.getPath(), maxNumOfPixels, targetWidth, targetHeight);
+        }
         
         FileInputStream fis = null;
         try {
-            fis = new FileInputStream(new File(filePath));
-            return decodeByteArray(readStream(fis), maxNumOfPixels);
+            fis = new FileInputStream(file);
+            return decodeStream(fis, (int) length, maxNumOfPixels, targetWidth, targetHeight);
 
         } catch (IOException e) {
         	if(DEBUG) Log.w(TAG, e);
@@ -104,7 +290,6 @@ public class BitmapUtil {
                 try { fis.close(); } catch (IOException e) {}
             }
         }
-        
     }
     
     
@@ -246,6 +431,54 @@ public class BitmapUtil {
     }
     
 
+    /*
+     * Largest power of 2 sample size keeping the decoded image at least as large as the target
+     * in both dimensions.
+     */
+    private static int computeTargetSampleSize(BitmapFactory.Options options, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        while (options.outWidth / (sampleSize << 1) >= targetWidth
+                && options.outHeight / (sampleSize << 1) >= targetHeight) {
+            sampleSize <<= 1;
+        }
+        return sampleSize;
+    }
+    
+    
+    /**
+     * Scale a bitmap down, keeping its aspect ratio, to the smallest size still covering the
+     * target. Bitmaps already small enough are returned as-is.
+     * @param owned true if the source bitmap is not referenced elsewhere and can be reclaimed
+     *              once scaled
+     */
+    public static Bitmap scaleToCover(Bitmap bitmap, int targetWidth, int targetHeight, boolean owned) {
+        if (bitmap == null || targetWidth <= 0 || targetHeight <= 0) {
+            return bitmap;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        float scale = Math.max((float) targetWidth / width, (float) targetHeight / height);
+        if (scale >= 1f) {
+            return bitmap;
+        }
+
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+        if (owned && scaled != bitmap) {
+            BitmapPool pool = sBitmapPool;
+            if (pool != null) {
+                pool.put(bitmap);
+            } else {
+                bitmap.recycle();
+            }
+        }
+        return scaled;
+    }
+    
+    
     private static int computeInitialSampleSize(BitmapFactory.Options options, int minSideLength, int maxNumOfPixels) {
         double w = options.outWidth;
         double h = options.outHeight;
@@ -272,23 +505,95 @@ public class BitmapUtil {
     }
 
     
-    private static byte[] readStream(InputStream is) throws IOException {
-        int len;
-        byte[] buf;
-
-        if (is instanceof ByteArrayInputStream) {
-            int size = is.available();
-            buf = new byte[size];
-            len = is.read(buf, 0, size);
-        } else {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            buf = new byte[1024];
-            while ((len = is.read(buf, 0, 1024)) != -1)
-                bos.write(buf, 0, len);
-            buf = bos.toByteArray();
+    /**
+     * Read a stream into a pooled buffer and decode it from there.
+     * @param knownLength length of the stream if known, read with a single buffer, 0 otherwise
+     */
+    private static Bitmap decodeStream(InputStream is, int knownLength, int maxNumOfPixels, int targetWidth, int targetHeight) 
+            throws IOException {
+        ByteArrayPool pool = sByteArrayPool;
+        byte[] buf = pool.get(knownLength > 0 ? knownLength : ByteArrayPool.MIN_ARRAY_SIZE);
+        try {
+            int length = 0;
+            int readed;
+            for (;;) {
+                if (length == buf.length) {
+                    if (knownLength > 0 && length >= knownLength)
+                        break;
+                    buf = pool.grow(buf, length);
+                }
+                if ((readed = is.read(buf, length, buf.length - length)) == -1)
+                    break;
+                length += readed;
+            }
+            return decodeByteArray(buf, length, maxNumOfPixels, targetWidth, targetHeight);
+        }
+        finally {
+            pool.put(buf);
+        }
+    }
+    
+    
+    /**
+     * Encode a bitmap for storage: PNG if it has transparency, JPEG otherwise.
+     * @param quality JPEG quality, 0-100
+     * @return null if the bitmap can not be encoded
+     */
+    public static byte[] compress(Bitmap bitmap, int quality) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+        if (bitmap.compress(format, quality, baos)) {
+            return baos.toByteArray();
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Read a whole file, its length being known.
+     */
+    static byte[] readFile(File file) throws IOException {
+        int length = (int) file.length();
+        byte[] data = new byte[length];
+        readFully(file, data, length);
+        return data;
+    }
+    
+    
+    /**
+     * Read a whole file into an array of the ByteArrayPool, to be handed back.
+     * @return the array holding the file up to the limit
+     */
+    static ByteBuffer readFilePooled(File file) throws IOException {
+        int length = (int) file.length();
+        byte[] data = sByteArrayPool.get(length);
+        boolean read = false;
+        try {
+            readFully(file, data, length);
+            read = true;
+            return ByteBuffer.wrap(data, 0, length);
+        }
+        finally {
+            if (!read) sByteArrayPool.put(data);
+        }
+    }
+    
+    
+    private static void readFully(File file, byte[] data, int length) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int readed;
+            while (offset < length && (readed = fis.read(data, offset, length - offset)) != -1) {
+                offset += readed;
+            }
+            if (offset < length) {
+                throw new IOException("truncated file " + file);
+            }
+        }
+        finally {
+            try { fis.close(); } catch (IOException e) {}
         }
-        
-        return buf;
     }
     
 
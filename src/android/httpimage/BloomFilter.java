@@ -0,0 +1,119 @@
+package android.httpimage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+/**
+ * Fixed size Bloom filter over 128-bit hashes, using double hashing to derive the probes.
+ * Not thread safe.
+ *
+ * @author abezzarg@gmail.com
+ */
+final class BloomFilter {
+
+    private static final int MAGIC = 0x424c4f4d;
+
+    private final long[] mBits;
+    private final int mNumBits;
+    private final int mNumHashes;
+    private final int mExpectedEntries;
+    private int mInsertions;
+
+
+    /**
+     * @param expectedEntries number of entries for which the false positive rate is met
+     * @param falsePositiveRate
+     */
+    BloomFilter(int expectedEntries, double falsePositiveRate) {
+        expectedEntries = Math.max(1, expectedEntries);
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+        mNumBits = (int) Math.max(64, Math.min(bits, Integer.MAX_VALUE - 63));
+        mNumHashes = Math.max(1, (int) Math.round((double) mNumBits / expectedEntries * ln2));
+        mBits = new long[(mNumBits + 63) >>> 6];
+        mExpectedEntries = expectedEntries;
+    }
+
+
+    private BloomFilter(long[] bits, int numBits, int numHashes, int expectedEntries, int insertions) {
+        mBits = bits;
+        mNumBits = numBits;
+        mNumHashes = numHashes;
+        mExpectedEntries = expectedEntries;
+        mInsertions = insertions;
+    }
+
+
+    void put(long h1, long h2) {
+        long combined = h1;
+        for (int i = 0; i < mNumHashes; i++) {
+            int bit = (int) ((combined & Long.MAX_VALUE) % mNumBits);
+            mBits[bit >>> 6] |= 1L << bit;
+            combined += h2;
+        }
+        mInsertions++;
+    }
+
+
+    /**
+     * @return false if the entry was never put, true if it probably was
+     */
+    boolean mightContain(long h1, long h2) {
+        long combined = h1;
+        for (int i = 0; i < mNumHashes; i++) {
+            int bit = (int) ((combined & Long.MAX_VALUE) % mNumBits);
+            if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += h2;
+        }
+        return true;
+    }
+
+
+    /**
+     * @return true once more entries were put than the filter was sized for, including entries
+     *         since removed from the underlying set
+     */
+    boolean isSaturated() {
+        return mInsertions > mExpectedEntries;
+    }
+
+
+    int getExpectedEntries() {
+        return mExpectedEntries;
+    }
+
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(mNumBits);
+        out.writeInt(mNumHashes);
+        out.writeInt(mExpectedEntries);
+        out.writeInt(mInsertions);
+        for (long word : mBits) {
+            out.writeLong(word);
+        }
+    }
+
+
+    static BloomFilter readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a bloom filter");
+        }
+        int numBits = in.readInt();
+        int numHashes = in.readInt();
+        int expectedEntries = in.readInt();
+        int insertions = in.readInt();
+        if (numBits <= 0 || numHashes <= 0) {
+            throw new IOException("corrupted bloom filter");
+        }
+        long[] bits = new long[(numBits + 63) >>> 6];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, numBits, numHashes, expectedEntries, insertions);
+    }
+}
@@ -0,0 +1,378 @@
+package android.httpimage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Persistence decorator answering definite misses from a Bloom filter of the stored keys, so an
+ * image that was never persisted goes straight to the network without touching the storage.
+ * <p>
+ * The filter is saved to a file every few stores and loaded back on first use. It is built from
+ * {@link PersistedBitmapCache#keys()} when there is no file yet, and rebuilt the same way once
+ * more keys went through it than it was sized for, which also clears the keys evicted or
+ * invalidated since. Saves and rebuilds run on the {@link MaintenanceScheduler}: until the first
+ * build completes every lookup goes to the persistence, and a saturated filter stays in use,
+ * with more false positives, until its replacement is ready. A persistence that can not
+ * enumerate its keys is used without a filter.
+ * <p>
+ * The HTTP validators stored next to the images are not in the filter, a lookup of validators
+ * is answered with the key of their image: they are stored after it, and never without it.
+ * <p>
+ * Keys stored after the last save are missing from the filter after a crash; those images are
+ * downloaded once more.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class BloomFilterPersistence extends PersistedBitmapCache {
+
+    private static final String TAG = BloomFilterPersistence.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int DEFAULT_EXPECTED_ENTRIES = 4096;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    /** number of stores after which the filter is saved */
+    private static final int SAVE_INTERVAL = 16;
+
+    private final PersistedBitmapCache mTarget;
+    private final File mFile;
+    private final int mExpectedEntries;
+    private BloomFilter mFilter;
+    private boolean mLoaded;
+    private int mUnsavedStores;
+    private boolean mSavePending;
+    private boolean mRebuildPending;
+    /** keys stored while a rebuild enumerates the persistence, null if none runs */
+    private ArrayList<String> mAddedDuringRebuild;
+
+    private final MaintenanceScheduler.Task mMaintenance = new MaintenanceScheduler.Task() {
+        @Override
+        public long runSlice(long maxBytes) {
+            return runMaintenance();
+        }
+    };
+
+
+    public BloomFilterPersistence(PersistedBitmapCache target, File file) {
+        this(target, file, DEFAULT_EXPECTED_ENTRIES);
+    }
+
+
+    /**
+     * @param target persistence looked up on a possible hit
+     * @param file where the filter is saved
+     * @param expectedEntries number of stored images the filter is sized for, at least
+     */
+    public BloomFilterPersistence(PersistedBitmapCache target, File file, int expectedEntries) {
+        mTarget = target;
+        mFile = file;
+        mExpectedEntries = expectedEntries;
+    }
+
+
+    public PersistedBitmapCache getTarget() {
+        return mTarget;
+    }
+
+
+    @Override
+    public void setDecodingPixelConstraint(int maxNumOfPixels) {
+        super.setDecodingPixelConstraint(maxNumOfPixels);
+        mTarget.setDecodingPixelConstraint(maxNumOfPixels);
+    }
+
+
+    /**
+     * @return false if key was definitely never stored
+     */
+    public synchronized boolean mightContain(String key) {
+        ensureLoaded();
+        if (mFilter == null) {
+            return true;
+        }
+        if (CacheValidators.isValidatorsKey(key)) {
+            key = CacheValidators.imageKeyOf(key);
+        }
+        CacheKey hash = CacheKey.forString(key);
+        return mFilter.mightContain(hash.getHigh(), hash.getLow());
+    }
+
+
+    @Override
+    public boolean exists(String key) {
+        return mightContain(key) && mTarget.exists(key);
+    }
+
+
+    @Override
+    public Bitmap loadData(String key) {
+        return mightContain(key) ? mTarget.loadData(key) : null;
+    }
+
+
+    @Override
+    public Bitmap loadData(String key, int targetWidth, int targetHeight) {
+        return mightContain(key) ? mTarget.loadData(key, targetWidth, targetHeight) : null;
+    }
+
+
+    @Override
+    public byte[] loadBytes(String key) {
+        return mightContain(key) ? mTarget.loadBytes(key) : null;
+    }
+
+
+    @Override
+    ByteBuffer loadPooledBytes(String key) {
+        return mightContain(key) ? mTarget.loadPooledBytes(key) : null;
+    }
+
+
+    @Override
+    public void storeData(String key, Object data) {
+        // in the filter first, a reader may only get a false positive
+        added(key);
+        mTarget.storeData(key, data);
+        savedIfNeeded(1);
+    }
+
+
+    @Override
+    public void storeAll(Map<String, byte[]> entries) {
+        for (String key : entries.keySet()) {
+            added(key);
+        }
+        mTarget.storeAll(entries);
+        savedIfNeeded(entries.size());
+    }
+
+
+    @Override
+    public File newTempFile(String key) {
+        return mTarget.newTempFile(key);
+    }
+
+
+    @Override
+    public void discardTempFile(File file) {
+        mTarget.discardTempFile(file);
+    }
+
+
+    @Override
+    public void storeFile(String key, File file) {
+        added(key);
+        mTarget.storeFile(key, file);
+        savedIfNeeded(1);
+    }
+
+
+    @Override
+    public void invalidate(String key) {
+        // stays in the filter until the next rebuild
+        mTarget.invalidate(key);
+    }
+
+
+    @Override
+    public void clear() {
+        mTarget.clear();
+        synchronized (this) {
+            // a rebuild in progress may bring back cleared keys, as false positives only
+            if (mLoaded && mFilter != null) {
+                mFilter = new BloomFilter(mExpectedEntries, FALSE_POSITIVE_RATE);
+                scheduleSave();
+            }
+        }
+    }
+
+
+    @Override
+    public Iterable<String> keys() {
+        return mTarget.keys();
+    }
+
+
+    /**
+     * Save the filter now.
+     */
+    public void flush() {
+        save();
+    }
+
+
+    private synchronized void added(String key) {
+        if (CacheValidators.isValidatorsKey(key)) {
+            return;
+        }
+        ensureLoaded();
+        if (mFilter != null) {
+            CacheKey hash = CacheKey.forString(key);
+            mFilter.put(hash.getHigh(), hash.getLow());
+        }
+        if (mAddedDuringRebuild != null) {
+            mAddedDuringRebuild.add(key);
+        }
+    }
+
+
+    private synchronized void savedIfNeeded(int stores) {
+        if (mFilter == null) {
+            return;
+        }
+        if (mFilter.isSaturated()) {
+            scheduleRebuild();
+        }
+        else if ((mUnsavedStores += stores) >= SAVE_INTERVAL) {
+            scheduleSave();
+        }
+    }
+
+
+    private void scheduleSave() {
+        mSavePending = true;
+        MaintenanceScheduler.getDefault().schedule(mMaintenance);
+    }
+
+
+    private void scheduleRebuild() {
+        if (mRebuildPending || mAddedDuringRebuild != null) {
+            return;
+        }
+        mRebuildPending = true;
+        MaintenanceScheduler.getDefault().schedule(mMaintenance);
+    }
+
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                mFilter = BloomFilter.readFrom(in);
+                if(DEBUG) Log.d(TAG, "[ensureLoaded] filter loaded from " + mFile);
+                return;
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.w(TAG, "[ensureLoaded] can not read " + mFile, e);
+            }
+            finally {
+                if (in != null) {
+                    try { in.close(); } catch (IOException e) {}
+                }
+            }
+        }
+        scheduleRebuild();
+    }
+
+
+    /**
+     * Run the pending rebuild or save, on the maintenance thread.
+     */
+    private long runMaintenance() {
+        boolean rebuild;
+        synchronized (this) {
+            rebuild = mRebuildPending;
+            if (rebuild) {
+                mRebuildPending = false;
+                mAddedDuringRebuild = new ArrayList<String>();
+            }
+            else if (mSavePending) {
+                mSavePending = false;
+            }
+            else {
+                return MaintenanceScheduler.DONE;
+            }
+        }
+        if (rebuild) {
+            rebuild();
+        }
+        return save();
+    }
+
+
+    /**
+     * Build a filter of the keys currently stored, sized with room to grow, without holding the
+     * lock the lookups need.
+     */
+    private void rebuild() {
+        Iterable<String> keys = mTarget.keys();
+        BloomFilter filter = null;
+        int n = 0;
+        if (keys != null) {
+            ArrayList<String> snapshot = new ArrayList<String>();
+            for (String key : keys) {
+                if (!CacheValidators.isValidatorsKey(key)) {
+                    snapshot.add(key);
+                }
+            }
+            n = snapshot.size();
+            filter = new BloomFilter(Math.max(mExpectedEntries, n * 2), FALSE_POSITIVE_RATE);
+            for (String key : snapshot) {
+                CacheKey hash = CacheKey.forString(key);
+                filter.put(hash.getHigh(), hash.getLow());
+            }
+        }
+        synchronized (this) {
+            if (filter != null) {
+                for (String key : mAddedDuringRebuild) {
+                    CacheKey hash = CacheKey.forString(key);
+                    filter.put(hash.getHigh(), hash.getLow());
+                }
+            }
+            mAddedDuringRebuild = null;
+            mFilter = filter;
+        }
+        if(DEBUG && filter != null) Log.d(TAG, "[rebuild] " + n + " keys, sized for " + filter.getExpectedEntries());
+    }
+
+
+    /**
+     * @return number of bytes written
+     */
+    private long save() {
+        // one save at a time, so the file always ends up with the latest filter
+        synchronized (mFile) {
+            byte[] data;
+            synchronized (this) {
+                if (mFilter == null) {
+                    return MaintenanceScheduler.DONE;
+                }
+                mUnsavedStores = 0;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                try {
+                    mFilter.writeTo(out);
+                    out.flush();
+                }
+                catch (IOException e) {
+                    // not thrown by a ByteArrayOutputStream
+                    throw new IllegalStateException(e);
+                }
+                data = bytes.toByteArray();
+            }
+            try {
+                FileSystemPersistence.writeFile(mFile, data);
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.e(TAG, "[save] can not write " + mFile, e);
+            }
+            return data.length + MaintenanceScheduler.FILE_OP_COST;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package android.httpimage;
+
+import java.util.ArrayList;
+
+
+/**
+ * Pool of the byte arrays used as transient buffers when downloading, reading and decoding
+ * images, so that loading an image does not allocate them afresh.
+ * <p>
+ * Arrays come in power of two size classes, from {@link #MIN_ARRAY_SIZE} up to
+ * {@link #getMaxArraySize()}, the largest class within both {@link #MAX_ARRAY_SIZE} and the byte
+ * cap: a request is served by the smallest class that fits, so callers must track the length
+ * actually used. Larger requests are allocated at their exact length and never pooled. When the pool
+ * goes over its byte cap the largest arrays are dropped first.
+ * <p>
+ * Only arrays no longer referenced elsewhere may be handed back.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class ByteArrayPool {
+
+    private static final String TAG = ByteArrayPool.class.getSimpleName();
+
+    public static final int MIN_ARRAY_SIZE = 1024;
+    public static final int MAX_ARRAY_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+
+    private static final int MIN_CLASS = Integer.numberOfTrailingZeros(MIN_ARRAY_SIZE);
+    private static final int MAX_CLASS = Integer.numberOfTrailingZeros(MAX_ARRAY_SIZE);
+
+    // free arrays of 1 << (MIN_CLASS + i) bytes
+    private final ArrayList<ArrayList<byte[]>> mClasses = new ArrayList<ArrayList<byte[]>>();
+    private int mMaxSize;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+
+
+    /**
+     * @param maxBytes max number of bytes of arrays held by the pool
+     */
+    public ByteArrayPool(int maxBytes) {
+        mMaxSize = maxBytes;
+        for (int c = MIN_CLASS; c <= MAX_CLASS; c++) {
+            mClasses.add(new ArrayList<byte[]>());
+        }
+    }
+
+
+    /**
+     * Take an array of at least minLength bytes, its content is undefined.
+     */
+    public synchronized byte[] get(int minLength) {
+        int c = classOf(minLength);
+        // a class put() would not take back is not rounded up for nothing
+        if (c > MAX_CLASS || (1 << c) > mMaxSize) {
+            mMissCount++;
+            return new byte[minLength];
+        }
+        ArrayList<byte[]> free = mClasses.get(c - MIN_CLASS);
+        if (!free.isEmpty()) {
+            byte[] array = free.remove(free.size() - 1);
+            mSize -= array.length;
+            mHitCount++;
+            return array;
+        }
+        mMissCount++;
+        return new byte[1 << c];
+    }
+
+
+    /**
+     * Take an array twice as large as buf holding its first used bytes, and hand buf back.
+     */
+    public byte[] grow(byte[] buf, int used) {
+        byte[] larger = get(buf.length > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : buf.length * 2);
+        System.arraycopy(buf, 0, larger, 0, used);
+        put(buf);
+        return larger;
+    }
+
+
+    /**
+     * Hand an array back to the pool. Arrays of a length the pool does not hand out are ignored.
+     */
+    public synchronized void put(byte[] array) {
+        if (array == null || array.length < MIN_ARRAY_SIZE || array.length > MAX_ARRAY_SIZE
+                || Integer.bitCount(array.length) != 1 || array.length > mMaxSize) {
+            return;
+        }
+        mClasses.get(classOf(array.length) - MIN_CLASS).add(array);
+        mSize += array.length;
+        trimToSize(mMaxSize);
+    }
+
+
+    /**
+     * Drop the largest arrays until the pool holds at most maxBytes.
+     * @param maxBytes
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        for (int i = mClasses.size() - 1; i >= 0 && mSize > maxBytes; i--) {
+            ArrayList<byte[]> free = mClasses.get(i);
+            while (mSize > maxBytes && !free.isEmpty()) {
+                mSize -= free.remove(free.size() - 1).length;
+            }
+        }
+    }
+
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+
+    /**
+     * Release memory in answer to ComponentCallbacks2.onTrimMemory(), see MemoryBitmapCache.trim().
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* levels
+     */
+    public synchronized void trim(int level) {
+        trimToSize((int) (mMaxSize * MemoryBitmapCache.trimRatio(level)));
+    }
+
+
+    public synchronized void setMaxSize(int maxBytes) {
+        mMaxSize = maxBytes;
+        trimToSize(mMaxSize);
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return length of the largest arrays the pool hands out and takes back, 0 if none
+     */
+    public synchronized int getMaxArraySize() {
+        int max = Math.min(MAX_ARRAY_SIZE, mMaxSize);
+        return (max >= MIN_ARRAY_SIZE) ? Integer.highestOneBit(max) : 0;
+    }
+
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "[size=" + mSize + "/" + mMaxSize + ", hits=" + mHitCount + ", misses=" + mMissCount + "]";
+    }
+
+
+    /**
+     * @return log2 of the smallest size class holding length bytes
+     */
+    private static int classOf(int length) {
+        if (length <= MIN_ARRAY_SIZE) {
+            return MIN_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1);
+    }
+}
@@ -0,0 +1,185 @@
+package android.httpimage;
+
+import android.net.Uri;
+
+
+/**
+ * 128-bit cache key of an image, used to name it both in memory and on disk.
+ * <p>
+ * The key is the MurmurHash3 (x64, 128-bit) of the characters of the URI. It is computed straight
+ * from the chars, without encoding the string to bytes nor going through MessageDigest, and 128
+ * bits make collisions between two URIs practically impossible, unlike String.hashCode().
+ * <p>
+ * A variant of a key mixes in the decoded size and an optional transformation name, so that
+ * several renditions of the same image can be cached side by side.
+ *
+ * @author abezzarg@gmail.com
+ */
+public final class CacheKey {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long mHigh;
+    private final long mLow;
+    private String mString;
+
+
+    private CacheKey(long high, long low) {
+        mHigh = high;
+        mLow = low;
+    }
+
+
+    public static CacheKey forUri(Uri uri) {
+        return forString(uri.toString());
+    }
+
+
+    public static CacheKey forString(CharSequence s) {
+        return hash(s, 0, 0);
+    }
+
+
+    /**
+     * Key of a rendition of this image.
+     * @param width decoded width, 0 if unconstrained
+     * @param height decoded height, 0 if unconstrained
+     * @param transformation name of the transformation applied, null if none
+     */
+    public CacheKey variant(int width, int height, CharSequence transformation) {
+        long seed1 = mHigh ^ (((long) width << 32) | (height & 0xffffffffL));
+        return hash(transformation != null ? transformation : "", seed1, mLow);
+    }
+
+
+    public long getHigh() {
+        return mHigh;
+    }
+
+
+    public long getLow() {
+        return mLow;
+    }
+
+
+    /**
+     * @return 32 lowercase hex digits, usable as a file name
+     */
+    @Override
+    public String toString() {
+        String s = mString;
+        if (s == null) {
+            char[] out = new char[32];
+            toHex(mHigh, out, 0);
+            toHex(mLow, out, 16);
+            s = mString = new String(out);
+        }
+        return s;
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey k = (CacheKey) o;
+        return mHigh == k.mHigh && mLow == k.mLow;
+    }
+
+
+    @Override
+    public int hashCode() {
+        return (int) (mLow ^ (mLow >>> 32));
+    }
+
+
+    private static void toHex(long v, char[] out, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            out[offset + i] = HEX[(int) (v & 0xf)];
+            v >>>= 4;
+        }
+    }
+
+
+    /**
+     * MurmurHash3_x64_128 over the UTF-16 code units of s, eight chars per 128-bit block. Same
+     * result as hashing the UTF-16LE encoding of s, without encoding it.
+     */
+    private static CacheKey hash(CharSequence s, long seed1, long seed2) {
+        long h1 = seed1;
+        long h2 = seed2;
+        int length = s.length();
+        int blocks = length >>> 3;
+
+        for (int i = 0; i < blocks; i++) {
+            int p = i << 3;
+            long k1 = s.charAt(p) | ((long) s.charAt(p + 1) << 16)
+                    | ((long) s.charAt(p + 2) << 32) | ((long) s.charAt(p + 3) << 48);
+            long k2 = s.charAt(p + 4) | ((long) s.charAt(p + 5) << 16)
+                    | ((long) s.charAt(p + 6) << 32) | ((long) s.charAt(p + 7) << 48);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int p = blocks << 3;
+        switch (length & 7) {
+            case 7: k2 ^= (long) s.charAt(p + 6) << 32;
+            case 6: k2 ^= (long) s.charAt(p + 5) << 16;
+            case 5: k2 ^= s.charAt(p + 4);
+                    h2 ^= mixK2(k2);
+            case 4: k1 ^= (long) s.charAt(p + 3) << 48;
+            case 3: k1 ^= (long) s.charAt(p + 2) << 32;
+            case 2: k1 ^= (long) s.charAt(p + 1) << 16;
+            case 1: k1 ^= s.charAt(p);
+                    h1 ^= mixK1(k1);
+        }
+
+        long bytes = (long) length << 1;
+        h1 ^= bytes;
+        h2 ^= bytes;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new CacheKey(h1, h2);
+    }
+
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb3e53ba27b1aL;
+        k ^= k >>> 33;
+        return k;
+    }
+}
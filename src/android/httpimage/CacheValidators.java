@@ -0,0 +1,199 @@
+package android.httpimage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+
+/**
+ * HTTP validators (ETag, Last-Modified) and freshness lifetime of a persisted image, stored in
+ * the same persistence as the image under {@link #keyFor(String)}.
+ * <p>
+ * The lifetime comes from Cache-Control max-age, or else Expires. Without either, an image with a
+ * Last-Modified date stays fresh for a tenth of its age, as HTTP caches do; an image with no
+ * header at all is fresh forever, as before validation was supported.
+ *
+ * @author abezzarg@gmail.com
+ */
+final class CacheValidators {
+
+    private static final String KEY_SUFFIX = ".http";
+    private static final int MAGIC = 0x48545450;
+    /** fraction of the age of an image given as its lifetime when the server gives none */
+    private static final float HEURISTIC_LIFETIME_FRACTION = 0.1f;
+    static final long FOREVER = Long.MAX_VALUE;
+
+    /** null if none */
+    final String etag;
+    /** as sent by the server, null if none */
+    final String lastModified;
+    /** time after which the image has to be revalidated */
+    final long expires;
+
+
+    CacheValidators(String etag, String lastModified, long expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+
+    /**
+     * @return key under which the validators of the image stored under key are stored
+     */
+    static String keyFor(String key) {
+        return key + KEY_SUFFIX;
+    }
+
+
+    /**
+     * @return true if key is the key of the validators of some image
+     */
+    static boolean isValidatorsKey(String key) {
+        return key.endsWith(KEY_SUFFIX);
+    }
+
+
+    /**
+     * @param key key of validators, see {@link #isValidatorsKey(String)}
+     * @return key of the image the validators belong to
+     */
+    static String imageKeyOf(String key) {
+        return key.substring(0, key.length() - KEY_SUFFIX.length());
+    }
+
+
+    boolean isStale(long now) {
+        return now >= expires;
+    }
+
+
+    /**
+     * @return false if the validators hold nothing worth storing
+     */
+    boolean isUseful() {
+        return etag != null || lastModified != null || expires != FOREVER;
+    }
+
+
+    /**
+     * @param now time the response was received
+     */
+    static CacheValidators fromResponse(Transport.Response response, long now) {
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        return new CacheValidators(etag, lastModified, expiresOf(response, lastModified, now));
+    }
+
+
+    /**
+     * @param notModified 304 response to a request conditional on these validators
+     * @return the validators updated with the headers of the response
+     */
+    CacheValidators refreshedBy(Transport.Response notModified, long now) {
+        String newEtag = notModified.getHeader("ETag");
+        String newLastModified = notModified.getHeader("Last-Modified");
+        String validator = (newLastModified != null) ? newLastModified : lastModified;
+        return new CacheValidators(newEtag != null ? newEtag : etag, validator, expiresOf(notModified, validator, now));
+    }
+
+
+    private static long expiresOf(Transport.Response response, String lastModified, long now) {
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring("max-age=".length()).trim()) * 1000;
+                    }
+                    catch (NumberFormatException e) {
+                        return now;
+                    }
+                }
+            }
+        }
+
+        long date = parseDate(response.getHeader("Date"));
+        if (date <= 0) {
+            date = now;
+        }
+        String expires = response.getHeader("Expires");
+        if (expires != null) {
+            // relative to the server clock, an invalid date means already expired
+            long time = parseDate(expires);
+            return (time > 0) ? now + Math.max(0, time - date) : now;
+        }
+
+        long modified = parseDate(lastModified);
+        if (modified > 0) {
+            return now + (long) (Math.max(0, date - modified) * HEURISTIC_LIFETIME_FRACTION);
+        }
+        return FOREVER;
+    }
+
+
+    /**
+     * @return milliseconds since the epoch, 0 if date is null or not an RFC 1123 date
+     */
+    static long parseDate(String date) {
+        if (date == null) {
+            return 0;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(date.trim()).getTime();
+        }
+        catch (ParseException e) {
+            return 0;
+        }
+    }
+
+
+    byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeLong(expires);
+            out.writeUTF(etag != null ? etag : "");
+            out.writeUTF(lastModified != null ? lastModified : "");
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            // not from a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * @return null if data are not validators
+     */
+    static CacheValidators fromBytes(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            long expires = in.readLong();
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            return new CacheValidators(etag.length() > 0 ? etag : null, lastModified.length() > 0 ? lastModified : null, expires);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -11,6 +11,12 @@ import android.provider.BaseColumns;
 public class DBImageTable implements BaseColumns {
     
     
+    /**
+     * Name of the table in the database of DBPersistence
+     */
+    public static final String TABLE_NAME = "thumbnail";
+    
+    
     /**
      * The content:// style URL for this table
      */
@@ -49,4 +55,27 @@ public class DBImageTable implements BaseColumns {
      */
     public static final String NUSE = "nUsed";
     
+    /**
+     * Path of the file holding the image, relative to the blob directory of DBPersistence.
+     * Null when the image is kept inline in DATA.
+     * <P>Type: TEXT</P>
+     */
+    public static final String PATH = "Path";
+    
+    
+    /**
+     * NAME is unique, so it is indexed. TIMESTAMP is indexed for the eviction order.
+     */
+    static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + NAME + " TEXT NOT NULL UNIQUE, "
+            + DATA + " BLOB, "
+            + PATH + " TEXT, "
+            + SIZE + " INTEGER NOT NULL, "
+            + TIMESTAMP + " INTEGER NOT NULL, "
+            + NUSE + " INTEGER NOT NULL DEFAULT 1)";
+    
+    static final String CREATE_TIMESTAMP_INDEX = "CREATE INDEX " + TABLE_NAME + "_" + TIMESTAMP
+            + " ON " + TABLE_NAME + " (" + TIMESTAMP + ")";
+    
 }
@@ -1,102 +1,461 @@
 package android.httpimage;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
-import android.net.Uri;
 import android.util.Log;
 
 
 /**
  * DB implementation of persistent storage.
- * 
+ * <p>
+ * The images are kept in the DBImageTable of a private SQLite database. exists() is a lookup on
+ * the unique, hence indexed, NAME column. Writes handed over together through storeAll(), as
+ * WriteBehindPersistence does when downloads outpace the disk, share one transaction.
+ * <p>
+ * Reads bump NUSE and TIMESTAMP. Those updates are deferred and written along with the next
+ * transaction, so a hit does not cost a write. Once the SIZE of all the rows exceeds the budget
+ * the least recently used, then least used, rows are deleted.
+ * <p>
+ * Given a blob directory, only images up to a size threshold, typically thumbnails, are kept
+ * inline in DATA. Larger ones go to files, whose PATH is recorded in the row, so large blobs never
+ * go through the cursor window. The table stays the authoritative index: a miss never touches the
+ * file system, and a file is only read once its row was found.
+ *
  * @author zonghai@gmail.com
  * @author abezzarg@gmail.com
  */
 public class DBPersistence extends PersistedBitmapCache{
 
-    private Context mContext;
     private static final String TAG = "DBPersistence";
     private static final boolean DEBUG = false;
-    
-    
+
+    public static final String DEFAULT_DATABASE_NAME = "httpimage.db";
+    public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_INLINE_SIZE = 32 * 1024;
+    private static final int DATABASE_VERSION = 2;
+
+    /** number of deferred read updates that triggers a transaction of their own */
+    private static final int MAX_PENDING_READS = 32;
+    /** number of rows looked up at once when evicting */
+    private static final int EVICTION_BATCH = 16;
+
+    private static final String WHERE_NAME = DBImageTable.NAME + " = ?";
+
+
+    private static class DBHelper extends SQLiteOpenHelper {
+
+        DBHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(DBImageTable.CREATE_TABLE);
+            db.execSQL(DBImageTable.CREATE_TIMESTAMP_INDEX);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // a cache, starting over is fine
+            db.execSQL("DROP TABLE IF EXISTS " + DBImageTable.TABLE_NAME);
+            onCreate(db);
+        }
+    }
+
+
+    private final DBHelper mHelper;
+    private final File mBlobDir;
+    private final int mMaxInlineSize;
+    private long mMaxSize = DEFAULT_MAX_SIZE;
+    // SUM(SIZE), loaded on first use
+    private long mSize = -1;
+    // key -> { reads not written yet, time of the last one }
+    private final HashMap<String, long[]> mPendingReads = new HashMap<String, long[]>();
+
+    private SQLiteStatement mExistsStatement;
+    private SQLiteStatement mSizeOfStatement;
+    private SQLiteStatement mPathOfStatement;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mTouchStatement;
+
+
     public DBPersistence(Context context) {
-        this.mContext = context;
+        this(context, DEFAULT_DATABASE_NAME);
+    }
+
+
+    /**
+     * @param context
+     * @param databaseName name of the database file, null for an in-memory database
+     */
+    public DBPersistence(Context context, String databaseName) {
+        this(context, databaseName, null, 0);
+    }
+
+
+    /**
+     * @param context
+     * @param databaseName name of the database file, null for an in-memory database
+     * @param blobDir directory of the images larger than maxInlineSize, null to keep them all inline
+     * @param maxInlineSize max size of the images kept in the DATA column
+     */
+    public DBPersistence(Context context, String databaseName, File blobDir, int maxInlineSize) {
+        mHelper = new DBHelper(context, databaseName);
+        mBlobDir = blobDir;
+        mMaxInlineSize = maxInlineSize;
+    }
+
+
+    /**
+     * Set the max number of bytes of images kept, evicting rows if needed.
+     * @param maxBytes
+     */
+    public synchronized void setMaxSize(long maxBytes) {
+        mMaxSize = maxBytes;
+        SQLiteDatabase db = open();
+        ArrayList<String> deletedPaths = new ArrayList<String>();
+        db.beginTransaction();
+        try {
+            evict(db, deletedPaths);
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+        deleteBlobs(deletedPaths);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
     }
-    
-    
-    public boolean exists(String key) {
-        //TODO
-        return false;
+
+    /**
+     * @return SUM(SIZE) of the rows
+     */
+    public synchronized long getSize() {
+        open();
+        return mSize;
+    }
+
+
+    private SQLiteDatabase open() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (mExistsStatement == null) {
+            String table = DBImageTable.TABLE_NAME;
+            mExistsStatement = db.compileStatement("SELECT COUNT(*) FROM " + table + " WHERE " + WHERE_NAME);
+            mSizeOfStatement = db.compileStatement("SELECT COALESCE(SUM(" + DBImageTable.SIZE + "), 0) FROM " + table + " WHERE " + WHERE_NAME);
+            // an aggregate always returns a row, '' when there is no file
+            mPathOfStatement = db.compileStatement("SELECT COALESCE(MAX(" + DBImageTable.PATH + "), '') FROM " + table + " WHERE " + WHERE_NAME);
+            mInsertStatement = db.compileStatement("INSERT OR REPLACE INTO " + table + " ("
+                    + DBImageTable.NAME + ", " + DBImageTable.DATA + ", " + DBImageTable.PATH + ", " + DBImageTable.SIZE + ", "
+                    + DBImageTable.TIMESTAMP + ", " + DBImageTable.NUSE + ") VALUES (?, ?, ?, ?, ?, 1)");
+            mTouchStatement = db.compileStatement("UPDATE " + table + " SET "
+                    + DBImageTable.NUSE + " = " + DBImageTable.NUSE + " + ?, "
+                    + DBImageTable.TIMESTAMP + " = ? WHERE " + WHERE_NAME);
+            SQLiteStatement total = db.compileStatement("SELECT COALESCE(SUM(" + DBImageTable.SIZE + "), 0) FROM " + table);
+            mSize = total.simpleQueryForLong();
+            total.close();
+        }
+        return db;
+    }
+
+
+    @Override
+    public synchronized boolean exists(String key) {
+        open();
+        mExistsStatement.bindString(1, key);
+        return mExistsStatement.simpleQueryForLong() > 0;
+    }
+
+
+    @Override
+    public synchronized Iterable<String> keys() {
+        ArrayList<String> keys = new ArrayList<String>();
+        Cursor c = open().query(DBImageTable.TABLE_NAME, new String[] { DBImageTable.NAME }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                keys.add(c.getString(0));
+            }
+        }
+        finally {
+            c.close();
+        }
+        return keys;
     }
 
 
+    @Override
     public Bitmap loadData(String key) {
+        return loadData(key, 0, 0);
+    }
+
+
+    @Override
+    public Bitmap loadData(String key, int targetWidth, int targetHeight) {
         Bitmap bitmap = null;
-        
-        Uri image = Uri.withAppendedPath(DBImageTable.CONTENT_URI, key);
-        if (DEBUG) Log.v(TAG, "[loadData] " + image.toString());
+        byte[] binary = loadBytes(key);
+
+        if( binary != null ) {
+            bitmap = BitmapUtil.decodeByteArray(binary, getDecodingPixelConstraint(), targetWidth, targetHeight);
+            if(bitmap == null) {
+                 // something wrong with the persistent data, can't be decoded to bitmap.
+                throw new RuntimeException("data from db can't be decoded to bitmap");
+            }
+        }
+        return bitmap;
+    }
+
+
+    @Override
+    public synchronized byte[] loadBytes(String key) {
+        if (DEBUG) Log.v(TAG, "[loadBytes] " + key);
         String[] returnCollums = new String[] {
             DBImageTable.DATA,
+            DBImageTable.PATH,
         };
-        
+
         Cursor c = null;
+        byte[] data;
+        String path;
         try {
-            ContentResolver cr = mContext.getContentResolver();
-            c = cr.query(image, returnCollums, null, null, null);
-            if (DEBUG) Log.v(TAG, "[loadData] count=" + c.getCount());
-            if(c.getCount() < 1) {
+            c = open().query(DBImageTable.TABLE_NAME, returnCollums, WHERE_NAME, new String[] { key }, null, null, null);
+            if(!c.moveToFirst()) {
                 return null;
             }
-            if(c .getCount() > 1) {
-                throw new RuntimeException("shouldn't reach here, make sure the NAME collumn is unique: " + key);
-            }
-            c.moveToFirst();
-            byte[] binary = c.getBlob(c.getColumnIndex(DBImageTable.DATA));
-            
-            if( binary != null ) {
-                bitmap = BitmapUtil.decodeByteArray(binary, getDecodingPixelConstraint());
-                if(bitmap == null) {
-                     // something wrong with the persistent data, can't be decoded to bitmap.
-                    throw new RuntimeException("data from db can't be decoded to bitmap");
-                }
-            }
-            return bitmap;
+            path = c.isNull(1) ? null : c.getString(1);
+            data = (path == null) ? c.getBlob(0) : null;
         }
         finally{
             if(c != null){
                 c.close();
             }
         }
+
+        if (path != null) {
+            try {
+                data = BitmapUtil.readFile(blobFile(path));
+            }
+            catch (IOException e) {
+                // deleted behind the table back
+                if (DEBUG) Log.w(TAG, "[loadBytes] missing blob " + path);
+                invalidate(key);
+                return null;
+            }
+        }
+
+        long[] reads = mPendingReads.get(key);
+        if (reads == null) {
+            reads = new long[2];
+            mPendingReads.put(key, reads);
+        }
+        reads[0]++;
+        reads[1] = System.currentTimeMillis();
+        if (mPendingReads.size() >= MAX_PENDING_READS) {
+            storeAll(Collections.<String, byte[]>emptyMap());
+        }
+        return data;
     }
 
-    
+
+    @Override
     public void storeData(String key, Object data) {
-        
         byte[] ba = (byte[])data;
         if (ba != null) {
-        
-            ContentValues values = new ContentValues();
-            values.put(DBImageTable.NAME, key);
-            values.put(DBImageTable.DATA, ba);
-            values.put(DBImageTable.SIZE, ba.length);
-            values.put(DBImageTable.NUSE, 1);
-            values.put(DBImageTable.TIMESTAMP, System.currentTimeMillis());
-            mContext.getContentResolver().insert(DBImageTable.CONTENT_URI, values);
+            storeAll(Collections.singletonMap(key, ba));
         }
     }
 
-    
+
+    /**
+     * Insert the entries, along with the deferred read updates, in a single transaction, then
+     * evict down to the budget.
+     */
     @Override
-    public void clear() {
-        //TODO
+    public synchronized void storeAll(Map<String, byte[]> entries) {
+        SQLiteDatabase db = open();
+        long now = System.currentTimeMillis();
+        ArrayList<String> deletedPaths = new ArrayList<String>();
+
+        // the files are complete before the rows pointing at them are committed
+        HashMap<String, String> paths = new HashMap<String, String>();
+        for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+            if (mBlobDir != null && e.getValue().length > mMaxInlineSize) {
+                String path = FileSystemPersistence.pathFor(e.getKey());
+                try {
+                    FileSystemPersistence.writeFile(blobFile(path), e.getValue());
+                    paths.put(e.getKey(), path);
+                }
+                catch (IOException ex) {
+                    if (DEBUG) Log.e(TAG, "[storeAll] error writing " + path, ex);
+                }
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                String key = e.getKey();
+                byte[] ba = e.getValue();
+                String path = paths.get(key);
+                if (path == null && mBlobDir != null && ba.length > mMaxInlineSize) {
+                    // the file could not be written
+                    continue;
+                }
+                mSizeOfStatement.bindString(1, key);
+                long previous = mSizeOfStatement.simpleQueryForLong();
+                mPathOfStatement.bindString(1, key);
+                String previousPath = mPathOfStatement.simpleQueryForString();
+                if (previousPath.length() > 0 && !previousPath.equals(path)) {
+                    deletedPaths.add(previousPath);
+                }
+
+                mInsertStatement.bindString(1, key);
+                if (path == null) {
+                    mInsertStatement.bindBlob(2, ba);
+                    mInsertStatement.bindNull(3);
+                } else {
+                    mInsertStatement.bindNull(2);
+                    mInsertStatement.bindString(3, path);
+                }
+                mInsertStatement.bindLong(4, ba.length);
+                mInsertStatement.bindLong(5, now);
+                mInsertStatement.executeInsert();
+                mSize += ba.length - previous;
+                mPendingReads.remove(key);
+            }
+
+            for (Map.Entry<String, long[]> e : mPendingReads.entrySet()) {
+                mTouchStatement.bindLong(1, e.getValue()[0]);
+                mTouchStatement.bindLong(2, e.getValue()[1]);
+                mTouchStatement.bindString(3, e.getKey());
+                mTouchStatement.execute();
+            }
+            mPendingReads.clear();
+
+            evict(db, deletedPaths);
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+        deleteBlobs(deletedPaths);
+        if (DEBUG) Log.v(TAG, "[storeAll] " + entries.size() + " entries, size : " + mSize + "/" + mMaxSize);
+    }
+
+
+    /**
+     * Delete the least recently used rows, least used first among rows of the same age, until
+     * under budget. Runs within the caller transaction.
+     * @param deletedPaths filled with the files to delete once the transaction is committed
+     */
+    private void evict(SQLiteDatabase db, ArrayList<String> deletedPaths) {
+        String[] collums = new String[] { DBImageTable.NAME, DBImageTable.SIZE, DBImageTable.PATH };
+        String order = DBImageTable.TIMESTAMP + " ASC, " + DBImageTable.NUSE + " ASC";
+        while (mSize > mMaxSize) {
+            Cursor c = db.query(DBImageTable.TABLE_NAME, collums, null, null, null, null, order, Integer.toString(EVICTION_BATCH));
+            int deleted = 0;
+            try {
+                while (mSize > mMaxSize && c.moveToNext()) {
+                    String key = c.getString(0);
+                    db.delete(DBImageTable.TABLE_NAME, WHERE_NAME, new String[] { key });
+                    mSize -= c.getLong(1);
+                    if (!c.isNull(2)) {
+                        deletedPaths.add(c.getString(2));
+                    }
+                    deleted++;
+                }
+            }
+            finally {
+                c.close();
+            }
+            if (deleted == 0) {
+                break;
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void clear() {
+        SQLiteDatabase db = open();
+        ArrayList<String> deletedPaths = new ArrayList<String>();
+        Cursor c = db.query(DBImageTable.TABLE_NAME, new String[] { DBImageTable.PATH },
+                DBImageTable.PATH + " IS NOT NULL", null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                deletedPaths.add(c.getString(0));
+            }
+        }
+        finally {
+            c.close();
+        }
+        db.delete(DBImageTable.TABLE_NAME, null, null);
+        mSize = 0;
+        mPendingReads.clear();
+        deleteBlobs(deletedPaths);
     }
 
 
     @Override
-    public void invalidate(String key) {
-        //TODO:
+    public synchronized void invalidate(String key) {
+        SQLiteDatabase db = open();
+        mSizeOfStatement.bindString(1, key);
+        long size = mSizeOfStatement.simpleQueryForLong();
+        mPathOfStatement.bindString(1, key);
+        String path = mPathOfStatement.simpleQueryForString();
+        if (db.delete(DBImageTable.TABLE_NAME, WHERE_NAME, new String[] { key }) > 0) {
+            mSize -= size;
+            if (path.length() > 0) {
+                blobFile(path).delete();
+            }
+        }
+        mPendingReads.remove(key);
+    }
+
+
+    private File blobFile(String path) {
+        return new File(mBlobDir, path);
+    }
+
+
+    private void deleteBlobs(ArrayList<String> paths) {
+        for (String path : paths) {
+            blobFile(path).delete();
+        }
+    }
+
+
+    /**
+     * Write the deferred read updates and close the database.
+     */
+    public synchronized void close() {
+        if (!mPendingReads.isEmpty()) {
+            storeAll(Collections.<String, byte[]>emptyMap());
+        }
+        closeStatements();
+        mHelper.close();
+    }
+
+
+    private void closeStatements() {
+        if (mExistsStatement != null) {
+            mExistsStatement.close();
+            mSizeOfStatement.close();
+            mPathOfStatement.close();
+            mInsertStatement.close();
+            mTouchStatement.close();
+            mExistsStatement = null;
+        }
     }
 }
@@ -0,0 +1,490 @@
+package android.httpimage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+
+/**
+ * In-memory index of the files held by FileSystemPersistence, in least recently used order,
+ * backed by an append-only journal.
+ * <p>
+ * Every store, read and removal appends one line to the journal, so at startup the index is
+ * rebuilt by replaying it instead of listing and stat-ing the whole cache directory. Once the
+ * journal holds too many redundant lines it is rewritten from the index. The directory is only
+ * scanned when there is no journal yet, to adopt the files of a cache created before it existed.
+ * <p>
+ * The index only tracks keys, the caller owns the files and deletes the ones it gets back from
+ * {@link #trimToSize(long)} and {@link #removeOlderThan(long)}.
+ *
+ * @author abezzarg@gmail.com
+ */
+class DiskLruIndex {
+
+    private static final String TAG = DiskLruIndex.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    private static final String MAGIC = "android.httpimage.DiskLruIndex";
+    private static final String VERSION = "1";
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String DEL = "DEL";
+
+    /** the journal is rewritten once it has that many redundant lines, and more than live ones */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+
+    static final class Entry {
+        long size;
+        long lastAccess;
+    }
+
+
+    private final File mDir;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mSize;
+    private boolean mLoaded;
+    private Writer mJournal;
+    private int mRedundantOpCount;
+
+
+    DiskLruIndex(File dir) {
+        mDir = dir;
+    }
+
+
+    /**
+     * @return true if name is one of the files of the index itself, not a cached entry
+     */
+    static boolean isIndexFile(String name) {
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name);
+    }
+
+
+    public synchronized boolean contains(String key) {
+        ensureOpen();
+        // a plain lookup, recency only changes on actual reads
+        return mEntries.containsKey(key);
+    }
+
+
+    /**
+     * Record a read of key, making it the most recently used entry.
+     * @return false if key is not indexed
+     */
+    public synchronized boolean recordRead(String key) {
+        ensureOpen();
+        Entry e = mEntries.get(key);
+        if (e == null) {
+            return false;
+        }
+        e.lastAccess = System.currentTimeMillis();
+        // not flushed, losing the recency of the last reads on a crash is harmless
+        mRedundantOpCount++;
+        append(READ + ' ' + key + ' ' + e.lastAccess, false);
+        compactIfNeeded();
+        return true;
+    }
+
+
+    /**
+     * Record that the file of key was written with size bytes.
+     */
+    public synchronized void recordStore(String key, long size) {
+        ensureOpen();
+        Entry e = mEntries.get(key);
+        if (e == null) {
+            e = new Entry();
+            mEntries.put(key, e);
+        }
+        else {
+            mSize -= e.size;
+            mRedundantOpCount++;
+        }
+        e.size = size;
+        e.lastAccess = System.currentTimeMillis();
+        mSize += size;
+        append(PUT + ' ' + key + ' ' + size + ' ' + e.lastAccess, true);
+        compactIfNeeded();
+    }
+
+
+    /**
+     * @return false if key was not indexed
+     */
+    public synchronized boolean remove(String key) {
+        ensureOpen();
+        Entry e = mEntries.remove(key);
+        if (e == null) {
+            return false;
+        }
+        mSize -= e.size;
+        mRedundantOpCount++;
+        append(DEL + ' ' + key, true);
+        compactIfNeeded();
+        return true;
+    }
+
+
+    /**
+     * Drop least recently used entries until the indexed files add up to at most maxBytes.
+     * @return the keys dropped, whose files are to be deleted by the caller
+     */
+    public synchronized List<String> trimToSize(long maxBytes) {
+        ensureOpen();
+        List<String> evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            evicted.add(drop(it));
+        }
+        compactIfNeeded();
+        return evicted;
+    }
+
+
+    /**
+     * Drop the entries not accessed since time.
+     * @return the keys dropped, whose files are to be deleted by the caller
+     */
+    public synchronized List<String> removeOlderThan(long time) {
+        ensureOpen();
+        List<String> expired = new ArrayList<String>();
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getValue().lastAccess < time) {
+                expired.add(e.getKey());
+                mSize -= e.getValue().size;
+                it.remove();
+                mRedundantOpCount++;
+                append(DEL + ' ' + e.getKey(), false);
+            }
+        }
+        flush();
+        compactIfNeeded();
+        return expired;
+    }
+
+
+    private String drop(Iterator<Map.Entry<String, Entry>> it) {
+        Map.Entry<String, Entry> eldest = it.next();
+        it.remove();
+        mSize -= eldest.getValue().size;
+        mRedundantOpCount++;
+        append(DEL + ' ' + eldest.getKey(), true);
+        return eldest.getKey();
+    }
+
+
+    public synchronized long getSize() {
+        ensureOpen();
+        return mSize;
+    }
+
+
+    public synchronized int getCount() {
+        ensureOpen();
+        return mEntries.size();
+    }
+
+
+    /**
+     * @return the keys, least recently used first
+     */
+    public synchronized List<String> keys() {
+        ensureOpen();
+        return new ArrayList<String>(mEntries.keySet());
+    }
+
+
+    /**
+     * Forget every entry and delete the journal, the files are deleted by the caller.
+     */
+    public synchronized void clear() {
+        closeJournal();
+        mEntries.clear();
+        mSize = 0;
+        mRedundantOpCount = 0;
+        new File(mDir, JOURNAL_FILE).delete();
+        new File(mDir, JOURNAL_FILE_TMP).delete();
+        // nothing to replay nor to adopt, a fresh journal is written on next use
+        mLoaded = true;
+    }
+
+
+    public synchronized void close() {
+        closeJournal();
+    }
+
+
+    /**
+     * Load the index on first use, from the worker threads rather than from the constructor.
+     */
+    private void ensureOpen() {
+        if (mJournal != null) {
+            return;
+        }
+        onOpen();
+        if (!mLoaded) {
+            File journal = new File(mDir, JOURNAL_FILE);
+            if (!journal.exists() || !readJournal(journal)) {
+                mEntries.clear();
+                mSize = 0;
+                adoptExistingFiles();
+                mRedundantOpCount = REDUNDANT_OP_COMPACT_THRESHOLD;
+            }
+            mLoaded = true;
+            if(DEBUG) Log.d(TAG, "[ensureOpen] " + mEntries.size() + " entries, " + mSize + " bytes");
+        }
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD || !new File(mDir, JOURNAL_FILE).exists()) {
+            rewriteJournal();
+        }
+        else {
+            openJournal();
+        }
+    }
+
+
+    /**
+     * Called before the journal is opened, or reopened after {@link #clear()}, with the lock held.
+     */
+    void onOpen() {
+    }
+
+
+    /**
+     * @return false if the journal is unreadable or not one of ours
+     */
+    private boolean readJournal(File journal) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                return false;
+            }
+            int lineCount = 0;
+            boolean malformed = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                // most likely a line truncated by a crash, the rewrite drops it
+                malformed |= !replay(line);
+            }
+            mRedundantOpCount = malformed ? REDUNDANT_OP_COMPACT_THRESHOLD : lineCount - mEntries.size();
+            return true;
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "[readJournal] error", e);
+            return false;
+        }
+        finally {
+            if (reader != null) {
+                try { reader.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+
+    private boolean replay(String line) {
+        String[] parts = line.split(" ");
+        try {
+            if (PUT.equals(parts[0]) && parts.length == 4) {
+                Entry e = mEntries.get(parts[1]);
+                if (e == null) {
+                    e = new Entry();
+                    mEntries.put(parts[1], e);
+                } else {
+                    mSize -= e.size;
+                }
+                e.size = Long.parseLong(parts[2]);
+                e.lastAccess = Long.parseLong(parts[3]);
+                mSize += e.size;
+                return true;
+            }
+            else if (READ.equals(parts[0]) && parts.length == 3) {
+                Entry e = mEntries.get(parts[1]);
+                if (e != null) {
+                    e.lastAccess = Long.parseLong(parts[2]);
+                }
+                return true;
+            }
+            else if (DEL.equals(parts[0]) && parts.length == 2) {
+                Entry e = mEntries.remove(parts[1]);
+                if (e != null) {
+                    mSize -= e.size;
+                }
+                return true;
+            }
+        }
+        catch (NumberFormatException e) {
+        }
+        return false;
+    }
+
+
+    /**
+     * One-time scan of a cache directory that has no journal yet.
+     */
+    private void adoptExistingFiles() {
+        List<File> files = new ArrayList<File>();
+        listFiles(mDir, 0, files);
+        // oldest first, so the LRU order follows the modification times
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long la = a.lastModified();
+                long lb = b.lastModified();
+                return la < lb ? -1 : (la == lb ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (!isIndexFile(name) && !name.startsWith(".") && !name.endsWith(FileSystemPersistence.TMP_SUFFIX)) {
+                Entry e = new Entry();
+                e.size = f.length();
+                e.lastAccess = f.lastModified();
+                mEntries.put(name, e);
+                mSize += e.size;
+            }
+        }
+        if(DEBUG) Log.d(TAG, "[adoptExistingFiles] " + mEntries.size() + " files adopted");
+    }
+
+
+    /**
+     * Collect the files of dir and of its shard directories.
+     */
+    private static void listFiles(File dir, int depth, List<File> out) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isFile()) {
+                out.add(f);
+            } else if (depth < 2 && f.isDirectory()) {
+                listFiles(f, depth + 1, out);
+            }
+        }
+    }
+
+
+    /**
+     * Write the index, in LRU order, to a new journal and swap it in.
+     */
+    private void rewriteJournal() {
+        closeJournal();
+        if (!mDir.exists()) {
+            mDir.mkdirs();
+        }
+        File tmp = new File(mDir, JOURNAL_FILE_TMP);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII"));
+            writer.write(MAGIC + '\n' + VERSION + '\n');
+            for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+                writer.write(PUT + ' ' + e.getKey() + ' ' + e.getValue().size + ' ' + e.getValue().lastAccess + '\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(new File(mDir, JOURNAL_FILE))) {
+                throw new IOException("can not rename " + tmp);
+            }
+            mRedundantOpCount = 0;
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "[rewriteJournal] error", e);
+        }
+        finally {
+            if (writer != null) {
+                try { writer.close(); } catch (IOException e) {}
+            }
+        }
+        openJournal();
+    }
+
+
+    private void openJournal() {
+        try {
+            mJournal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(mDir, JOURNAL_FILE), true), "US-ASCII"));
+        }
+        catch (IOException e) {
+            // keep working from memory, the next cold start scans the directory again
+            if(DEBUG) Log.e(TAG, "[openJournal] can not open journal", e);
+            mJournal = new NullWriter();
+        }
+    }
+
+
+    private void append(String line, boolean flush) {
+        try {
+            mJournal.write(line);
+            mJournal.write('\n');
+            if (flush) {
+                mJournal.flush();
+            }
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "[append] error", e);
+        }
+    }
+
+
+    /**
+     * Rewrite the journal once it is mostly made of redundant lines, called once an operation
+     * is complete so the index is never written half-updated.
+     */
+    private void compactIfNeeded() {
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size()) {
+            rewriteJournal();
+        }
+    }
+
+
+    private void flush() {
+        try {
+            mJournal.flush();
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "[flush] error", e);
+        }
+    }
+
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try { mJournal.close(); } catch (IOException e) {}
+            mJournal = null;
+        }
+    }
+
+
+    /**
+     * Journal used when the real one can not be opened.
+     */
+    private static class NullWriter extends Writer {
+        @Override public void write(char[] buf, int offset, int count) {}
+        @Override public void flush() {}
+        @Override public void close() {}
+    }
+}
@@ -0,0 +1,216 @@
+package android.httpimage;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * In-memory cache of the original encoded images, sitting between MemoryBitmapCache and the
+ * persistence layer.
+ * <p>
+ * Encoded images are 5 to 20 times smaller than their decoded pixels, so a given budget holds a
+ * lot more of them. A miss in the bitmap cache that hits here only costs a decode, no disk I/O.
+ * The bytes are kept off the Java heap in direct ByteBuffers, and evicted in LRU order once the
+ * byte budget is exceeded.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class EncodedMemoryCache implements BitmapCache {
+
+    private static final String TAG = EncodedMemoryCache.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private final LinkedHashMap<String, ByteBuffer> mMap = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    private int mMaxSize;
+    private int mSize;
+    private int mMaxNumOfPixelsConstraint = HttpImageManager.DECODING_MAX_PIXELS_DEFAULT;
+
+
+    /**
+     * @param maxBytes max number of encoded bytes held
+     */
+    public EncodedMemoryCache(int maxBytes) {
+        mMaxSize = maxBytes;
+    }
+
+
+    public void setDecodingPixelConstraint (int maxNumOfPixels){
+        mMaxNumOfPixelsConstraint = maxNumOfPixels;
+    }
+
+    public int getDecodingPixelConstraint(){
+        return mMaxNumOfPixelsConstraint;
+    }
+
+
+    public synchronized void setMaxSize(int maxBytes) {
+        mMaxSize = maxBytes;
+        trimToSize(mMaxSize);
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+
+    /**
+     * Release memory in answer to ComponentCallbacks2.onTrimMemory(), see MemoryBitmapCache.trim().
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* levels
+     */
+    public synchronized void trim(int level) {
+        trimToSize((int) (mMaxSize * MemoryBitmapCache.trimRatio(level)));
+    }
+
+
+    @Override
+    public synchronized boolean exists(String key) {
+        return mMap.containsKey(key);
+    }
+
+
+    @Override
+    public synchronized void invalidate(String key) {
+        ByteBuffer buffer = mMap.remove(key);
+        if (buffer != null) {
+            mSize -= buffer.capacity();
+        }
+    }
+
+
+    @Override
+    public synchronized void clear() {
+        mMap.clear();
+        mSize = 0;
+    }
+
+
+    /**
+     * Retrieve the decoded bitmap, return null means cache miss
+     * @param key
+     */
+    @Override
+    public Bitmap loadData(String key) {
+        return loadData(key, 0, 0);
+    }
+
+
+    /**
+     * Retrieve the bitmap decoded for display at the given size, through a pooled copy of the
+     * encoded image. Return null means cache miss.
+     * @param targetWidth 0 if unconstrained
+     * @param targetHeight 0 if unconstrained
+     */
+    public Bitmap loadData(String key, int targetWidth, int targetHeight) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = mMap.get(key);
+        }
+        if (buffer == null) {
+            return null;
+        }
+        ByteArrayPool pool = BitmapUtil.getByteArrayPool();
+        int length = buffer.capacity();
+        byte[] bytes = pool.get(length);
+        try {
+            buffer.duplicate().get(bytes, 0, length);
+            return BitmapUtil.decodeByteArray(bytes, length, mMaxNumOfPixelsConstraint, targetWidth, targetHeight);
+        }
+        finally {
+            pool.put(bytes);
+        }
+    }
+
+
+    /**
+     * @return number of bytes of the encoded image, 0 if not cached
+     */
+    public synchronized int getLength(String key) {
+        ByteBuffer buffer = mMap.get(key);
+        return (buffer != null) ? buffer.capacity() : 0;
+    }
+
+
+    /**
+     * Retrieve a copy of the encoded image, return null means cache miss
+     * @param key
+     */
+    public byte[] loadBytes(String key) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = mMap.get(key);
+        }
+        if (buffer == null) {
+            return null;
+        }
+        // the buffer is never written again once stored, a duplicate gives a private position
+        byte[] bytes = new byte[buffer.capacity()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+
+    /**
+     * Store the encoded image
+     * @param key
+     * @param data byte[]
+     */
+    @Override
+    public void storeData(String key, Object data) {
+        byte[] bytes = (byte[]) data;
+        if (bytes != null) {
+            storeData(key, bytes, bytes.length);
+        }
+    }
+
+
+    /**
+     * Store a copy of the encoded image held by bytes up to length, e.g. a pooled array.
+     */
+    void storeData(String key, byte[] bytes, int length) {
+        if (length == 0 || length > mMaxSize) {
+            return;
+        }
+        if (exists(key)) {
+            return;
+        }
+
+        // copied outside the lock
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(bytes, 0, length);
+        buffer.flip();
+
+        synchronized (this) {
+            if (mMap.containsKey(key)) {
+                return;
+            }
+            mMap.put(key, buffer);
+            mSize += length;
+            trimToSize(mMaxSize);
+        }
+        if(DEBUG) Log.v(TAG, "[storeData] " + key + " size : " + mSize + "/" + mMaxSize);
+    }
+
+
+    /**
+     * Evict least recently used entries until the cache holds at most maxBytes.
+     * @param maxBytes
+     */
+    protected synchronized void trimToSize(int maxBytes) {
+        Iterator<Map.Entry<String, ByteBuffer>> it = mMap.entrySet().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            Map.Entry<String, ByteBuffer> eldest = it.next();
+            it.remove();
+            // direct memory is freed once the buffer is garbage collected
+            mSize -= eldest.getValue().capacity();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package android.httpimage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.net.Uri;
+
+
+/**
+ * In-memory transport serving responses registered beforehand, to benchmark the loading pipeline
+ * or exercise it in tests without a network.
+ * <p>
+ * Unknown uris are answered 404. A request whose If-None-Match equals the ETag of its response,
+ * or whose If-Modified-Since equals its Last-Modified, is answered 304 Not Modified without body.
+ * A latency may be added to every request to mimic a network.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class FakeTransport implements Transport {
+
+    private final Map<String, FakeResponse> mResponses = Collections.synchronizedMap(new HashMap<String, FakeResponse>());
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private volatile Map<String, String> mLastRequestHeaders = Collections.emptyMap();
+    private volatile long mLatency;
+
+
+    /**
+     * Answer uri with a 200 carrying body.
+     * @param headers response headers, e.g. ETag or Cache-Control, null for none
+     */
+    public void put(Uri uri, byte[] body, Map<String, String> headers) {
+        put(uri, HttpURLConnection.HTTP_OK, body, headers);
+    }
+
+
+    /**
+     * @param body null for none
+     * @param headers null for none
+     */
+    public void put(Uri uri, int statusCode, byte[] body, Map<String, String> headers) {
+        mResponses.put(uri.toString(), new FakeResponse(statusCode, body,
+                (headers != null) ? new HashMap<String, String>(headers) : new HashMap<String, String>()));
+    }
+
+
+    public void remove(Uri uri) {
+        mResponses.remove(uri.toString());
+    }
+
+
+    public void clear() {
+        mResponses.clear();
+    }
+
+
+    /**
+     * @param millis time every request waits before answering
+     */
+    public void setLatency(long millis) {
+        mLatency = millis;
+    }
+
+
+    /**
+     * @return number of requests issued, whatever their response
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+
+    /**
+     * @return headers of the last request, e.g. to check its If-None-Match, empty if none was issued
+     */
+    public Map<String, String> getLastRequestHeaders() {
+        return mLastRequestHeaders;
+    }
+
+
+    @Override
+    public Response execute(Uri uri, Map<String, String> headers) throws IOException {
+        mRequestCount.incrementAndGet();
+        mLastRequestHeaders = Collections.unmodifiableMap(new HashMap<String, String>(headers));
+        if (mLatency > 0) {
+            try {
+                Thread.sleep(mLatency);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        FakeResponse response = mResponses.get(uri.toString());
+        if (response == null) {
+            return new FakeResponse(HttpURLConnection.HTTP_NOT_FOUND, null, new HashMap<String, String>());
+        }
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        if ((etag != null && etag.equals(headers.get("If-None-Match")))
+                || (lastModified != null && lastModified.equals(headers.get("If-Modified-Since")))) {
+            return new FakeResponse(HttpURLConnection.HTTP_NOT_MODIFIED, null, response.mHeaders);
+        }
+        return response;
+    }
+
+
+    /**
+     * Immutable, so one instance answers any number of requests.
+     */
+    private static class FakeResponse implements Response {
+
+        private final int mStatusCode;
+        private final byte[] mBody;
+        private final Map<String, String> mHeaders;
+
+        FakeResponse(int statusCode, byte[] body, Map<String, String> headers) {
+            mStatusCode = statusCode;
+            mBody = body;
+            mHeaders = headers;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name))
+                    return header.getValue();
+            }
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return (mBody != null) ? mBody.length : -1;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return (mBody != null) ? new ByteArrayInputStream(mBody) : null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
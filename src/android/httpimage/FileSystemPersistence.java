@@ -3,6 +3,10 @@ package android.httpimage;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.graphics.Bitmap;
 import android.util.Log;
@@ -10,6 +14,19 @@ import android.util.Log;
 
 /**
  * File system implementation of persistent storage for downloaded images.
+ * <p>
+ * The files are kept under a byte budget, evicted in least recently used order as new ones are
+ * stored. Their sizes and access times are tracked by a journaled DiskLruIndex, so neither a
+ * lookup nor the startup needs to list the cache directory.
+ * <p>
+ * Files are spread over a two-level fan-out of directories named after the first hex digits of
+ * their key (ab/cd/abcd...), so no directory grows past a few hundred entries. Caches written
+ * with the former flat layout are migrated once, on first use.
+ * <p>
+ * Deleting the evicted and expired files, and the temporary files left over by a crash, is left
+ * to the MaintenanceScheduler, so it does not hold up the loads. A marker file is kept while
+ * temporary files are open, and the directories are only scanned for leftovers when a start finds
+ * it. A file is only deleted under the index lock, after checking that it was not stored again.
  * 
  * @author zonghai@gmail.com
  * @author abezzarg@gmail.com
@@ -19,12 +36,54 @@ public class FileSystemPersistence extends PersistedBitmapCache{
     private static String TAG = FileSystemPersistence.class.getSimpleName();
     private static boolean DEBUG = false;
     
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+    
+    /** marks a base directory that uses the sharded layout */
+    static final String SHARDED_MARKER = ".sharded";
+    /** suffix of the files being written */
+    static final String TMP_SUFFIX = ".tmp";
+    /** present while temporary files may be open, so found at startup after a crash */
+    static final String TMP_MARKER = ".tmpfiles";
+    private static final int SHARD_WIDTH = 2;
+    /** temporary files older than this were left over by a crash */
+    private static final long ORPHAN_TMP_AGE = 10 * 60 * 1000;
+    /** deletes queued beyond this are done right away by the caller */
+    private static final int MAX_PENDING_DELETES = 1024;
+    
     private String mBaseDir;
+    private final DiskLruIndex mIndex;
+    private volatile long mMaxSize = DEFAULT_MAX_SIZE;
+    private volatile boolean mLayoutChecked;
+    
+    // housekeeping left to the scheduler, guarded by mMaintenance
+    private final ArrayDeque<String> mPendingDeletes = new ArrayDeque<String>();
+    private final ArrayList<File> mOrphanScanDirs = new ArrayList<File>();
+    private long mExpireBefore;
+    private int mOpenTempFiles;
+    private boolean mTmpMarked;
+    private final MaintenanceScheduler.Task mMaintenance = new MaintenanceScheduler.Task() {
+        @Override
+        public long runSlice(long maxBytes) {
+            return runMaintenance(maxBytes);
+        }
+    };
     
     
     public FileSystemPersistence ( String baseDir ) {
         mBaseDir = baseDir;
-        
+        mIndex = new DiskLruIndex(new File(baseDir)) {
+            @Override
+            void onOpen() {
+                ensureLayout();
+                if (new File(mBaseDir, TMP_MARKER).exists()) {
+                    // removed again once the scan is done
+                    synchronized (mMaintenance) {
+                        mTmpMarked = true;
+                    }
+                    scheduleOrphanScan();
+                }
+            }
+        };
     }
     
     public FileSystemPersistence ( String baseDir, long deleteDelay ) {
@@ -36,67 +95,406 @@ public class FileSystemPersistence extends PersistedBitmapCache{
 
     
     
+    /**
+     * Set the max number of bytes of files kept on disk, evicting the least recently used ones
+     * if needed.
+     * @param maxBytes
+     */
+    public void setMaxSize(long maxBytes) {
+        mMaxSize = maxBytes;
+        trimToSize(maxBytes);
+    }
+    
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+    
+    /**
+     * @return number of bytes of files currently on disk
+     */
+    public long getSize() {
+        return mIndex.getSize();
+    }
+    
+    
+    /**
+     * @return the file holding key, it may not exist
+     */
+    public File getFile(String key) {
+        return fileFor(new File(mBaseDir), key);
+    }
+    
+    
+    static File fileFor(File baseDir, String key) {
+        return new File(baseDir, pathFor(key));
+    }
+    
+    
+    /**
+     * @return path of the file holding key, relative to the base directory
+     */
+    static String pathFor(String key) {
+        // short keys are padded, never left at the top where they could clash with a shard
+        String prefix = (key.length() >= 2 * SHARD_WIDTH) ? key : (key + "____").substring(0, 2 * SHARD_WIDTH);
+        return prefix.substring(0, SHARD_WIDTH) + File.separatorChar
+                + prefix.substring(SHARD_WIDTH, 2 * SHARD_WIDTH) + File.separatorChar + key;
+    }
+    
+    
+    /**
+     * Move the files of a cache written with the flat layout into their shard, once.
+     */
+    private synchronized void ensureLayout() {
+        if (mLayoutChecked) {
+            return;
+        }
+        File dir = new File(mBaseDir);
+        File marker = new File(dir, SHARDED_MARKER);
+        if (!marker.exists()) {
+            int moved = 0;
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    String name = f.getName();
+                    if (!f.isFile() || DiskLruIndex.isIndexFile(name) || name.startsWith(".")) {
+                        continue;
+                    }
+                    File target = fileFor(dir, name);
+                    if (!target.equals(f)) {
+                        target.getParentFile().mkdirs();
+                        if (f.renameTo(target)) {
+                            moved++;
+                        }
+                    }
+                }
+            }
+            try {
+                dir.mkdirs();
+                marker.createNewFile();
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.e(TAG, "[ensureLayout] can not create marker", e);
+            }
+            if(DEBUG) Log.d(TAG, "[ensureLayout] " + moved + " files migrated to the sharded layout");
+        }
+        mLayoutChecked = true;
+    }
+    
+    
     @Override
     public void clear() {
+        synchronized (mMaintenance) {
+            mPendingDeletes.clear();
+            mOrphanScanDirs.clear();
+            mExpireBefore = 0;
+            // the marker goes with the directory, the files still open with it
+            mTmpMarked = false;
+        }
+        mIndex.clear();
         try {
             this.removeDir(new File(mBaseDir));
         } 
         catch (IOException e) {
             throw new RuntimeException ( e );
         }
+        finally {
+            // the marker went with the directory
+            mLayoutChecked = false;
+        }
     }
 
     
     @Override
     public boolean exists(String key) {
-        File file = new File( new File(mBaseDir), key) ;
-        return file.exists();
+        return mIndex.contains(key);
+    }
+
+    
+    @Override
+    public Iterable<String> keys() {
+        return mIndex.keys();
     }
 
     
     @Override
     public void invalidate(String key) {
+        synchronized (mIndex) {
+            if (mIndex.remove(key)) {
+                getFile(key).delete();
+            }
+        }
     }
 
     
     @Override
     public Bitmap loadData(String key) {
-        if( !exists(key) ) {
+        return loadData(key, 0, 0);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key, int targetWidth, int targetHeight) {
+        if( !mIndex.recordRead(key) ) {
             return null;
         }
         
-        File file = new File( new File(mBaseDir), key) ;
-        return BitmapUtil.decodeFile(file.getAbsolutePath(), getDecodingPixelConstraint());
+        File file = getFile(key);
+        Bitmap bitmap = BitmapUtil.decodeFilePooled(file, getDecodingPixelConstraint(), targetWidth, targetHeight);
+        if (bitmap == null && !file.exists()) {
+            // deleted behind the index back
+            mIndex.remove(key);
+        }
+        return bitmap;
     }
 
     
     @Override
-    public void storeData(String key, Object data) {
-        File file = new File( new File(mBaseDir), key) ;
-        FileOutputStream outputStream = null;
+    public byte[] loadBytes(String key) {
+        if( !mIndex.recordRead(key) ) {
+            return null;
+        }
+        
+        try {
+            return BitmapUtil.readFile(getFile(key));
+        }
+        catch (IOException e) {
+            // deleted behind the index back
+            mIndex.remove(key);
+            return null;
+        }
+    }
+
+    
+    @Override
+    ByteBuffer loadPooledBytes(String key) {
+        if( !mIndex.recordRead(key) ) {
+            return null;
+        }
         
         try {
-            if (!file.getParentFile().exists()) {
-                file.getParentFile().mkdirs();
+            return BitmapUtil.readFilePooled(getFile(key));
+        }
+        catch (IOException e) {
+            // deleted behind the index back
+            mIndex.remove(key);
+            return null;
+        }
+    }
+
+
+    /**
+     * Record a read of key, for callers reading its file by themselves.
+     * @return the file holding key, null if not stored
+     */
+    File openFile(String key) {
+        return mIndex.recordRead(key) ? getFile(key) : null;
+    }
+
+
+    /**
+     * Store the data in a temporary file renamed once complete, so a crash in the middle never
+     * leaves a truncated image under the key.
+     */
+    @Override
+    public void storeData(String key, Object data) {
+        byte[] bytes = (byte[])data;
+        File dir = getFile(key).getParentFile();
+        File tmp = null;
+        tempFileOpened();
+        try {
+            dir.mkdirs();
+            tmp = createTempFile(dir, key);
+            writeSynced(tmp, bytes);
+            if (!commitFile(key, tmp, bytes.length)) {
+                throw new IOException("can not rename " + tmp);
             }
-            outputStream = new FileOutputStream(file);
-            
-            outputStream.write((byte[])data);
-            outputStream.flush();
         }
         catch (IOException e) {
             if(DEBUG) Log.e(TAG, "[storeData] error storing bitmap", e);
         }
         finally {
-            if(outputStream != null) {
+            // gone once renamed
+            if (tmp != null) {
+                tmp.delete();
+            }
+            tempFileClosed();
+        }
+        
+        scheduleDeletes(mIndex.trimToSize(mMaxSize));
+    }
+    
+    
+    /**
+     * @return a new temporary file next to the file of key, deleted by the housekeeping if it is
+     *         left behind
+     */
+    @Override
+    public File newTempFile(String key) {
+        File dir = getFile(key).getParentFile();
+        // released by storeFile() or discardTempFile()
+        tempFileOpened();
+        try {
+            dir.mkdirs();
+            return createTempFile(dir, key);
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "[newTempFile] can not create a file in " + dir, e);
+            tempFileClosed();
+            return null;
+        }
+    }
+    
+    
+    @Override
+    public void discardTempFile(File file) {
+        file.delete();
+        tempFileClosed();
+    }
+    
+    
+    /**
+     * Rename a file obtained from newTempFile() over the file of key.
+     */
+    @Override
+    public void storeFile(String key, File file) {
+        if (!commitFile(key, file, file.length())) {
+            if(DEBUG) Log.e(TAG, "[storeFile] can not rename " + file);
+            file.delete();
+        }
+        tempFileClosed();
+        
+        scheduleDeletes(mIndex.trimToSize(mMaxSize));
+    }
+    
+    
+    /**
+     * Rename tmp over the file of key and index it, under the index lock so a delete of the
+     * former file checked against the index never removes this one.
+     * @return false if the rename failed
+     */
+    private boolean commitFile(String key, File tmp, long length) {
+        synchronized (mIndex) {
+            if (!tmp.renameTo(getFile(key))) {
+                return false;
+            }
+            mIndex.recordStore(key, length);
+            return true;
+        }
+    }
+    
+    
+    /**
+     * Delete the file of key, unless it was stored again since it was dropped from the index.
+     */
+    private void deleteUnlessIndexed(File baseDir, String key) {
+        synchronized (mIndex) {
+            if (!mIndex.contains(key)) {
+                fileFor(baseDir, key).delete();
+            }
+        }
+    }
+    
+    
+    private void tempFileOpened() {
+        synchronized (mMaintenance) {
+            mOpenTempFiles++;
+            if (!mTmpMarked) {
+                File marker = new File(mBaseDir, TMP_MARKER);
                 try {
-                    outputStream.close();
-                } catch (IOException e) {}
+                    marker.getParentFile().mkdirs();
+                    marker.createNewFile();
+                    mTmpMarked = true;
+                }
+                catch (IOException e) {
+                    if(DEBUG) Log.e(TAG, "[tempFileOpened] can not create " + marker, e);
+                }
             }
         }
     }
     
     
+    private void tempFileClosed() {
+        synchronized (mMaintenance) {
+            if (--mOpenTempFiles > 0 || !mTmpMarked) {
+                return;
+            }
+        }
+        // the marker is removed by the housekeeping, not on every store
+        MaintenanceScheduler.getDefault().schedule(mMaintenance);
+    }
+    
+    
+    /**
+     * @return a new empty file of dir with a unique name starting with name
+     */
+    private static File createTempFile(File dir, String name) throws IOException {
+        return File.createTempFile(name.length() >= 3 ? name : name + "___", TMP_SUFFIX, dir);
+    }
+    
+    
+    /**
+     * Write data to a temporary file next to file, then rename it. Every writer gets its own
+     * temporary file, so concurrent writes of the same file never interleave: the last rename
+     * wins whole.
+     */
+    static void writeFile(File file, byte[] data) throws IOException {
+        if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        File tmp = createTempFile(file.getParentFile(), file.getName());
+        boolean renamed = false;
+        try {
+            writeSynced(tmp, data);
+            renamed = tmp.renameTo(file);
+            if (!renamed) {
+                throw new IOException("can not rename " + tmp);
+            }
+        }
+        finally {
+            if (!renamed) {
+                tmp.delete();
+            }
+        }
+    }
+    
+    
+    /**
+     * Write data to file and wait until it is on disk, so a rename never makes a truncated file
+     * visible.
+     */
+    private static void writeSynced(File file, byte[] data) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(data);
+            outputStream.flush();
+            outputStream.getFD().sync();
+        }
+        finally {
+            outputStream.close();
+        }
+    }
+    
+    
+    /**
+     * Evict least recently used files until at most maxBytes are used. Only the files over
+     * budget are touched, the directory is never listed.
+     * @param maxBytes
+     */
+    public void trimToSize(long maxBytes) {
+        deleteFiles(mIndex.trimToSize(maxBytes));
+    }
+    
+    
+    private void deleteFiles(List<String> keys) {
+        File dir = new File(mBaseDir);
+        for (String key : keys) {
+            // empty shard directories are left, there are at most 65536 of them
+            deleteUnlessIndexed(dir, key);
+        }
+        if(DEBUG && !keys.isEmpty()) Log.d(TAG, "[deleteFiles] " + keys.size() + " files deleted");
+    }
+    
+    
     /**
      * Delete a directory
      *
@@ -143,29 +541,138 @@ public class FileSystemPersistence extends PersistedBitmapCache{
         d.delete();  
     }    
     
+    /**
+     * Delete the files neither read nor written for DELETE_DELAY, in the background.
+     */
     public void deleteEntryOlderThan(final long DELETE_DELAY){
     	Log.v(TAG, "[deleteEntryOlderThan] image dir is : " + mBaseDir);
-    	new Thread(){
-    		public void run(){
-    			try{
-    				File dir = new File(mBaseDir);
-    				if (!dir.exists()){
-    					return;
-    				}else{
-    					File[] files = dir.listFiles();
-    					if (files != null){
-    						for (File f : files){
-    							if (f.isFile() && (f.lastModified() + DELETE_DELAY < System.currentTimeMillis())){
-    								f.delete();
-    							}
-    						}
-    					}
-    				}
-    			}catch(Exception e){
-
-    			}
-    		}
-    	}.start();
+    	synchronized (mMaintenance) {
+    		mExpireBefore = Math.max(mExpireBefore, System.currentTimeMillis() - DELETE_DELAY);
+    	}
+    	MaintenanceScheduler.getDefault().schedule(mMaintenance);
+    }
+    
+    
+    private void scheduleDeletes(List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        queueDeletes(keys);
+        MaintenanceScheduler.getDefault().schedule(mMaintenance);
+    }
+    
+    
+    /**
+     * Queue the deletes of the files of keys, doing them right away once too many are pending.
+     */
+    private void queueDeletes(List<String> keys) {
+        List<String> overflow = null;
+        synchronized (mMaintenance) {
+            for (String key : keys) {
+                if (mPendingDeletes.size() < MAX_PENDING_DELETES) {
+                    mPendingDeletes.add(key);
+                }
+                else {
+                    if (overflow == null) {
+                        overflow = new ArrayList<String>();
+                    }
+                    overflow.add(key);
+                }
+            }
+        }
+        if (overflow != null) {
+            deleteFiles(overflow);
+        }
+    }
+    
+    
+    private void scheduleOrphanScan() {
+        synchronized (mMaintenance) {
+            mOrphanScanDirs.add(new File(mBaseDir));
+        }
+        MaintenanceScheduler.getDefault().schedule(mMaintenance);
+    }
+    
+    
+    /**
+     * One slice of housekeeping: expiring the old entries from the index, then deleting the files
+     * of the evicted ones, then scanning for orphan temporary files, a directory at a time, then
+     * removing the marker of the temporary files once none is open.
+     */
+    private long runMaintenance(long maxBytes) {
+        long expireBefore;
+        synchronized (mMaintenance) {
+            expireBefore = mExpireBefore;
+            mExpireBefore = 0;
+        }
+        if (expireBefore > 0) {
+            // entries not read nor written since, straight from the index
+            List<String> expired = mIndex.removeOlderThan(expireBefore);
+            queueDeletes(expired);
+            if(DEBUG) Log.d(TAG, "[runMaintenance] " + expired.size() + " entries expired");
+            return MaintenanceScheduler.FILE_OP_COST;
+        }
+        
+        File baseDir = new File(mBaseDir);
+        long used = 0;
+        do {
+            String key;
+            File dir = null;
+            synchronized (mMaintenance) {
+                key = mPendingDeletes.poll();
+                if (key == null && !mOrphanScanDirs.isEmpty()) {
+                    dir = mOrphanScanDirs.remove(mOrphanScanDirs.size() - 1);
+                }
+            }
+            if (key != null) {
+                deleteUnlessIndexed(baseDir, key);
+                used += MaintenanceScheduler.FILE_OP_COST;
+            }
+            else if (dir != null) {
+                used += deleteOrphans(dir);
+            }
+            else {
+                synchronized (mMaintenance) {
+                    if (mTmpMarked && mOpenTempFiles == 0 && mOrphanScanDirs.isEmpty()) {
+                        new File(mBaseDir, TMP_MARKER).delete();
+                        mTmpMarked = false;
+                        used += MaintenanceScheduler.FILE_OP_COST;
+                    }
+                }
+                return (used > 0) ? used : MaintenanceScheduler.DONE;
+            }
+        } while (used < maxBytes);
+        return used;
+    }
+    
+    
+    /**
+     * Delete the stale temporary files of dir, and queue its subdirectories for the same.
+     * @return I/O cost
+     */
+    private long deleteOrphans(File dir) {
+        long cost = MaintenanceScheduler.FILE_OP_COST;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return cost;
+        }
+        long staleBefore = System.currentTimeMillis() - ORPHAN_TMP_AGE;
+        ArrayList<File> subdirs = new ArrayList<File>();
+        for (File f : files) {
+            String name = f.getName();
+            if (f.isDirectory()) {
+                subdirs.add(f);
+            }
+            else if (name.endsWith(TMP_SUFFIX) && !DiskLruIndex.isIndexFile(name) && f.lastModified() < staleBefore) {
+                if(DEBUG) Log.d(TAG, "[deleteOrphans] " + f);
+                f.delete();
+                cost += MaintenanceScheduler.FILE_OP_COST;
+            }
+        }
+        synchronized (mMaintenance) {
+            mOrphanScanDirs.addAll(subdirs);
+        }
+        return cost;
     }
     
     public String getBaseDir(){
@@ -0,0 +1,98 @@
+package android.httpimage;
+
+
+/**
+ * Count-min sketch estimating how often keys were seen, used by {@link TinyLfuAdmissionPolicy}.
+ * <p>
+ * Counters are 4 bits wide, sixteen of them packed in each long, and every key is counted in
+ * four of them. The estimate is the smallest of the four, so it may over count on hash
+ * collisions but never under counts. Once the number of recorded events reaches ten times the
+ * table width, all counters are halved so that the history ages and recent popularity wins.
+ * <p>
+ * Not thread safe, callers are expected to serialize access.
+ *
+ * @author abezzarg@gmail.com
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] mTable;
+    private final int mCounterMask;
+    private final int mSampleSize;
+    private int mAdditions;
+
+
+    /**
+     * @param expectedEntries number of distinct keys expected to be worth tracking
+     */
+    FrequencySketch(int expectedEntries) {
+        int width = 16;
+        while (width < expectedEntries) {
+            width <<= 1;
+        }
+        mTable = new long[width];
+        mCounterMask = (width << 4) - 1;
+        mSampleSize = 10 * width;
+    }
+
+
+    /**
+     * @return estimated number of occurrences of the hash, between 0 and 15
+     */
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((mTable[index >>> 4] >>> ((index & 15) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+
+    /**
+     * Record one occurrence of the hash.
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(hash, i));
+        }
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+
+    private boolean incrementAt(int index) {
+        int slot = index >>> 4;
+        int offset = (index & 15) << 2;
+        long mask = 0xfL << offset;
+        if ((mTable[slot] & mask) != mask) {
+            mTable[slot] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+
+    /** Halve every counter. */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mAdditions >>>= 1;
+    }
+
+
+    private int indexOf(int hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+        return ((int) h) & mCounterMask;
+    }
+}
@@ -1,24 +1,29 @@
 package android.httpimage;
 
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
@@ -30,8 +35,10 @@ import android.graphics.drawable.TransitionDrawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 
@@ -88,22 +95,52 @@ public class HttpImageManager{
     public static boolean DEBUG = false;
     public static boolean keepAlpha = false;
 
-    public static final int DEFAULT_CACHE_SIZE 			= 64;
+    public static final float DEFAULT_CACHE_HEAP_FRACTION = 0.125f;
     public static final int UNCONSTRAINED 				= -1;
     public static final int DECODING_MAX_PIXELS_DEFAULT = 600 * 800;
 	public static final int SCRUB_FACTOR 				= 2;//scrub factor - bitmaps will be scrubbed down by a factor of this value (used for thumbnail)
+	private static final int FADE_DURATION_MILLIS 		= 250;
+	private static final int MAX_VARIANT_INDEX_SIZE 	= 512;
+	private static final int MAX_EXPIRY_INDEX_SIZE 		= 512;
+	private static final int VARIANT_JPEG_QUALITY 		= 85;
+	// a variant is only persisted if it takes at most this fraction of the original bytes
+	private static final float MAX_VARIANT_SIZE_RATIO 	= 0.5f;
+	private static final int STREAM_BUFFER_SIZE 		= 8 * 1024;
 	
     
     private int mMaxNumOfPixelsConstraint = DECODING_MAX_PIXELS_DEFAULT;
-    private MemoryBitmapCache mCache;
+    private MemoryCache mCache;
+    private EncodedMemoryCache mEncodedCache;
     private PersistedBitmapCache mPersistence;
+    // a RawPixelPersistence among the persistence decorators
+    private final boolean mHasPixelTier;
     private NetworkResourceLoader mNetworkResourceLoader = new NetworkResourceLoader(); 
 	private HashMap<Integer, Drawable> 	mDefaults;
 
     private Handler mHandler = new Handler();
     private PausableThreadPoolExecutor mExecutor = new PausableThreadPoolExecutor(1, 4, 10, TimeUnit.SECONDS, new LinkedBlockingStack<Runnable>());
+    // background revalidations, one at a time and in order so they never compete with the loads
+    private PausableThreadPoolExecutor mRevalidationExecutor = new PausableThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private Set<String> mRevalidating = new HashSet<String>();
     private Set<LoadRequest> mActiveRequests = new HashSet<LoadRequest>();
+    private WeakHashMap<ImageView, BitmapHandle> mBoundHandles = new WeakHashMap<ImageView, BitmapHandle>();
+    // memory keys of the sizes cached for an image, most recently used images last
+    private LinkedHashMap<String, ArrayList<String>> mVariants = new LinkedHashMap<String, ArrayList<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArrayList<String>> eldest) {
+            return size() > MAX_VARIANT_INDEX_SIZE;
+        }
+    };
+    // expiry of the persisted images whose validators were read or stored, most recently used last
+    private LinkedHashMap<String, Long> mExpiries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_EXPIRY_INDEX_SIZE;
+        }
+    };
     private BitmapFilter mFilter;
+    private volatile boolean mPersistVariants;
+    private volatile boolean mStaleWhileRevalidate;
     private static HttpImageManager sInstance = null;
 
     public static interface OnLoadResponseListener {
@@ -115,11 +152,15 @@ public class HttpImageManager{
     public static class LoadRequest {
     	
         private Uri mUri;
+        private CacheKey mKey;
         private String mHashedUri;
         private OnLoadResponseListener mListener;
         private ImageView mImageView;
         private Boolean mIsAnimated;
         private Boolean mIsThumbnailed;
+        private int mTargetWidth;
+        private int mTargetHeight;
+        private String mMemoryKey;
         
         public LoadRequest (Uri uri) {
             this(uri, null, null);
@@ -149,9 +190,6 @@ public class HttpImageManager{
             mListener = l;
             mIsAnimated = isAnimated;
             mIsThumbnailed = isThumbnailed;
-//            mHashedUri = computeHashedName(uri.toString());
-//            mHashedUri = uri.toString();
-            mHashedUri = Integer.toString(uri.hashCode());
         }
 
 
@@ -165,8 +203,82 @@ public class HttpImageManager{
         }
 
 
+        /**
+         * 128-bit hash of the URI in hex, naming the image in memory and on disk.
+         */
         public String getHashedUri () {
-            return this.mHashedUri;
+            // built on first use, a memory hit for a target size only needs the key of the variant
+            if (mHashedUri == null)
+                mHashedUri = getCacheKey().toString();
+            return mHashedUri;
+        }
+
+
+        public CacheKey getCacheKey () {
+            if (mKey == null)
+                mKey = CacheKey.forUri(mUri);
+            return mKey;
+        }
+
+
+        /**
+         * Decode the image for display at the given size. When not set, the size of the target
+         * ImageView is used once it is known.
+         * @return this request
+         */
+        public LoadRequest setTargetSize (int width, int height) {
+            mTargetWidth = width;
+            mTargetHeight = height;
+            mMemoryKey = null;
+            return this;
+        }
+
+
+        public int getTargetWidth () {
+            return mTargetWidth;
+        }
+
+
+        public int getTargetHeight () {
+            return mTargetHeight;
+        }
+
+
+        public boolean hasTargetSize () {
+            return mTargetWidth > 0 && mTargetHeight > 0;
+        }
+
+
+        /**
+         * Key of the image in the memory cache, which holds one entry per decoded size.
+         * The persistence layer keeps the original under {@link #getHashedUri()}.
+         */
+        public String getMemoryKey () {
+            if (mMemoryKey == null) {
+                mMemoryKey = hasTargetSize() ? getCacheKey().variant(mTargetWidth, mTargetHeight, null).toString() : getHashedUri();
+            }
+            return mMemoryKey;
+        }
+
+
+        /**
+         * Take the size of the ImageView as target size, unless one was set explicitly.
+         */
+        void resolveTargetSize (ImageView iv) {
+            if (hasTargetSize())
+                return;
+            int width = iv.getWidth();
+            int height = iv.getHeight();
+            if (width <= 0 || height <= 0) {
+                // not laid out yet, fall back to a fixed layout size if any
+                ViewGroup.LayoutParams lp = iv.getLayoutParams();
+                if (lp != null) {
+                    width = lp.width;
+                    height = lp.height;
+                }
+            }
+            if (width > 0 && height > 0)
+                setTargetSize(width, height);
         }
 
 
@@ -191,24 +303,6 @@ public class HttpImageManager{
             return false;
         }
 
-        /* Hex representation of the hash over input name */
-        private String computeHashedName (String name) {
-            try {
-                MessageDigest digest = java.security.MessageDigest.getInstance("MD5");
-                digest.update(name.getBytes());
-                
-                byte[] result = digest.digest();
-                BigInteger i = new BigInteger(1,result);
-                return String.format("%1$032x", i); 
-//                return String.format("%02X%02X%02X%02X%02X%02X%02X%02X%02X%02X%02X%02X%02X%02X%02X%02X",
-//                        result[0], result[1], result[2], result[3], result[4], result[5], result[6], result[7],
-//                        result[8],result[9], result[10], result[11],result[12], result[13], result[14], result[15]);
-            } 
-            catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
     }
 
     
@@ -222,19 +316,36 @@ public class HttpImageManager{
     
 
     ////////HttpImageManager
-    private HttpImageManager (MemoryBitmapCache cache,  PersistedBitmapCache persistence ) {
+    private HttpImageManager (MemoryCache cache,  PersistedBitmapCache persistence ) {
         mCache = cache;
         mPersistence = persistence;
         if (mPersistence == null) {
             throw new IllegalArgumentException (" persistence layer should be specified");
         }
+        mHasPixelTier = hasPixelTier(persistence);
         
         mDefaults = new HashMap<Integer, Drawable>();
+        // disk housekeeping waits for the loads to settle
+        MaintenanceScheduler.getDefault().setExecutor(mExecutor);
     }
 
     private HttpImageManager ( PersistedBitmapCache persistence ) {
         this(null, persistence);
     }
+
+
+    private static boolean hasPixelTier(PersistedBitmapCache persistence) {
+        for (;;) {
+            if (persistence instanceof RawPixelPersistence)
+                return true;
+            else if (persistence instanceof WriteBehindPersistence)
+                persistence = ((WriteBehindPersistence) persistence).getTarget();
+            else if (persistence instanceof BloomFilterPersistence)
+                persistence = ((BloomFilterPersistence) persistence).getTarget();
+            else
+                return false;
+        }
+    }
     
     public static HttpImageManager getInstance(){
     	if(sInstance == null){
@@ -243,7 +354,7 @@ public class HttpImageManager{
     	return sInstance;
 	}
 
-    public static void initialize(MemoryBitmapCache cache,  PersistedBitmapCache persistence){
+    public static void initialize(MemoryCache cache,  PersistedBitmapCache persistence){
     	if (sInstance == null){
 			sInstance = new HttpImageManager(cache, persistence);
 		}
@@ -258,6 +369,8 @@ public class HttpImageManager{
     public void setDecodingPixelConstraint (int max) {
         mMaxNumOfPixelsConstraint = max;
         mPersistence.setDecodingPixelConstraint(max);
+        if (mEncodedCache != null)
+            mEncodedCache.setDecodingPixelConstraint(max);
     }
     
     
@@ -265,15 +378,27 @@ public class HttpImageManager{
         return mMaxNumOfPixelsConstraint;
     }
     
-    public void setBitmapMemoryCacheSize(int size){
+    /**
+     * Set the memory cache budget in bytes of bitmap pixels.
+     * @param maxBytes
+     */
+    public void setBitmapMemoryCacheSize(int maxBytes){
     	if (mCache!=null){
-    		mCache.setMaxSize(size);
+    		mCache.setMaxSize(maxBytes);
     		if(DEBUG)Log.d(TAG, "[setBitmapMemoryCacheSize] max size setted : " + mCache.getMaxSize());
     	}else{
-    		if(DEBUG)Log.d(TAG, "[setBitmapMemoryCacheSize] max size not setted using default : " + mCache.getMaxSize() );
+    		if(DEBUG)Log.d(TAG, "[setBitmapMemoryCacheSize] no memory cache, max size ignored");
     	}
     }
     
+    /**
+     * Set the memory cache budget as a fraction of the maximum heap size.
+     * @param heapFraction between 0 and 1
+     */
+    public void setBitmapMemoryCacheSize(float heapFraction){
+    	setBitmapMemoryCacheSize(MemoryBitmapCache.computeHeapBudget(heapFraction));
+    }
+    
     public int getBitmapMemoryCacheSize(){
     	int result = 0;
     	if (mCache!=null){
@@ -283,13 +408,85 @@ public class HttpImageManager{
     }
     
     
+    /**
+     * Reuse the pixel memory of the bitmaps evicted from the memory cache for new decodes.
+     * ImageViews bound by this manager hold a reference on their bitmap so it is only reused once
+     * no longer displayed; listeners keeping bitmaps must take their own through
+     * {@link MemoryCache#loadHandle(String)}.
+     * @param pool null to disable reuse
+     */
+    public void setBitmapPool (BitmapPool pool) {
+        if (mCache != null)
+            mCache.setBitmapPool(pool);
+        BitmapUtil.setBitmapPool(pool);
+    }
+    
+    
+    /**
+     * Keep the encoded images in memory between the bitmap cache and the persistence layer, so that
+     * a bitmap cache miss costs a decode instead of disk I/O. When the persistence keeps decoded
+     * pixels in a {@link RawPixelPersistence}, a miss of this cache is served from those pixels
+     * instead of being filled from the stored bytes.
+     * @param cache null to go straight to persistence
+     */
+    public void setEncodedMemoryCache (EncodedMemoryCache cache) {
+        if (cache != null)
+            cache.setDecodingPixelConstraint(mMaxNumOfPixelsConstraint);
+        mEncodedCache = cache;
+    }
+    
+    
     public void setBitmapFilter (BitmapFilter filter) {
         mFilter = filter;
     }
     
     
+    /**
+     * Persist the images decoded for a target size, encoded again at that size, next to the
+     * original. Later disk hits for that size read and decode the small copy instead of
+     * subsampling the original. Only copies much smaller than the original are kept.
+     * @param persistVariants
+     */
+    public void setPersistVariants (boolean persistVariants) {
+        mPersistVariants = persistVariants;
+    }
+    
+    
+    /**
+     * Serve stale persisted images right away and revalidate them in the background, instead of
+     * waiting for the revalidation. If an image changed on the server, it is replaced in the caches
+     * and loaded again for the request: the ImageView is bound again, and the listener gets a
+     * second onLoadResponse().
+     * @param staleWhileRevalidate
+     */
+    public void setStaleWhileRevalidate (boolean staleWhileRevalidate) {
+        mStaleWhileRevalidate = staleWhileRevalidate;
+    }
+
+
+    public boolean isStaleWhileRevalidate () {
+        return mStaleWhileRevalidate;
+    }
+
+
+    /**
+     * Set the HTTP client images are downloaded with, the apache HTTP client by default. A
+     * {@link UrlConnectionTransport} uses HttpURLConnection, a {@link FakeTransport} serves
+     * images from memory to benchmark the loading pipeline without a network.
+     * @param transport
+     */
+    public void setTransport (Transport transport) {
+        mNetworkResourceLoader.setTransport(transport);
+    }
+
+
+    public Transport getTransport () {
+        return mNetworkResourceLoader.getTransport();
+    }
+    
+    
     static public MemoryBitmapCache createDefaultMemoryCache() {
-        return new MemoryBitmapCache(DEFAULT_CACHE_SIZE);
+        return MemoryBitmapCache.fromHeapFraction(DEFAULT_CACHE_HEAP_FRACTION);
     }
 
 
@@ -312,29 +509,38 @@ public class HttpImageManager{
             synchronized ( iv ) {
                 iv.setTag(r.getUri()); // bind URI to the ImageView, to prevent image write-back of earlier requests.
             }
+            r.resolveTargetSize(iv);
         }
 
-        String key = r.getHashedUri();
-        if(mCache != null && mCache.exists(key)) {
-            Bitmap bitmap = mCache.loadData(key);
-            if (bitmap != null) {
-//			      setImageBitmapWithFade(iv, bitmap);
-			      iv.setImageBitmap(bitmap);
+        String key = r.getMemoryKey();
+        // single lookup, a concurrent cache may have evicted the entry between exists() and loadData()
+        BitmapHandle handle = (mCache != null) ? mCache.loadHandle(key) : null;
+        if(handle != null) {
+            Bitmap bitmap = handle.getBitmap();
+            if (iv != null) {
+			      bindImageView(iv, bitmap, handle, false);
 			}
+            else {
+                handle.release();
+            }
          // callback listener if any
             fireLoadResponse(r, bitmap);
             return bitmap;
         }
         else { 
             // not ready yet, try to retrieve it asynchronously.
-            mExecutor.execute( newRequestCall(r));
+            mExecutor.execute( newRequestCall(r, true));
             return null;
         }
     }
 
 
     ////PRIVATE
-    private Runnable newRequestCall(final LoadRequest request) {
+    /**
+     * @param revalidate false for the reload of an image that was just revalidated, so a stale
+     *        copy never schedules another revalidation
+     */
+    private Runnable newRequestCall(final LoadRequest request, final boolean revalidate) {
         return new Runnable() {
 
             public void run() {
@@ -404,23 +610,109 @@ public class HttpImageManager{
                 }
 
                 Bitmap data = null;
+                BitmapHandle handle = null;
                 String key = request.getHashedUri();
+                int targetWidth = request.getTargetWidth();
+                int targetHeight = request.getTargetHeight();
 
                 try {
-                    //first we lookup memory cache
-                    if (mCache != null)
-                        data = mCache.loadData(key);
+                    //first we lookup memory cache, for this size then for a larger one
+                    if (mCache != null) {
+                        handle = mCache.loadHandle(request.getMemoryKey());
+                        if (handle == null)
+                            handle = loadLargerVariant(request);
+                        if (handle != null)
+                            data = handle.getBitmap();
+                    }
+
+                    // a stale persisted image is revalidated first, the response carries the image if it changed
+                    Transport.Response changed = null;
+                    boolean revalidateLater = false;
+                    if(data == null && revalidate) {
+                        if (mStaleWhileRevalidate)
+                            revalidateLater = true;
+                        else
+                            changed = revalidateIfStale(request);
+                    }
+
+                    // then a copy persisted for this size, if any
+                    boolean variantMissing = false;
+                    if(data == null && mPersistVariants && request.hasTargetSize()) {
+                        if(changed == null)
+                            data = mPersistence.loadData(request.getMemoryKey(), targetWidth, targetHeight);
+                        if(data != null) {
+                            if(DEBUG)  Log.d(TAG, "[newRequestCall] found persisted variant: " + request.getUri().toString());
+                            handle = storeVariant(request, data);
+
+                            fireLoadProgress(request, 1, 1); // fire progress done
+                        }
+                        else {
+                            variantMissing = true;
+                        }
+                    }
+
+                    EncodedMemoryCache encodedCache = mEncodedCache;
+                    boolean persistenceChecked = false;
+                    if(data == null && changed == null && encodedCache != null) {
+                        //then the encoded images kept in memory, decoded through a pooled copy
+                        int length = encodedCache.getLength(key);
+                        if (length > 0)
+                            data = encodedCache.loadData(key, targetWidth, targetHeight);
+                        if (data == null && mHasPixelTier && !variantMissing) {
+                            // the pixel tier restores the image without a decode, rather than the bytes
+                            data = mPersistence.loadData(key, targetWidth, targetHeight);
+                            persistenceChecked = true;
+                        }
+                        else if (data == null) {
+                            // filled from the persistent storage on a miss
+                            persistenceChecked = true;
+                            ByteBuffer binary = mPersistence.loadPooledBytes(key);
+                            if (binary != null) {
+                                try {
+                                    length = binary.limit();
+                                    encodedCache.storeData(key, binary.array(), length);
+                                    data = BitmapUtil.decodeByteArray(binary.array(), length, mMaxNumOfPixelsConstraint, targetWidth, targetHeight);
+                                }
+                                finally {
+                                    BitmapUtil.getByteArrayPool().put(binary.array());
+                                }
+                            }
+                        }
+                        if(data != null) {
+                            if(DEBUG)  Log.d(TAG, "[newRequestCall] found in encoded cache: " + request.getUri().toString());
+                            if (variantMissing)
+                                persistVariant(request, data, length);
+                            handle = storeVariant(request, data);
+
+                            fireLoadProgress(request, 1, 1); // fire progress done
+                        }
+                    }
 
                     if(data == null) {
                         if(DEBUG)  Log.d(TAG, "[newRequestCall] cache missing " + request.getUri().toString());
                         //then check the persistent storage
-                        data = mPersistence.loadData(key);
+                        if (changed == null && !persistenceChecked && variantMissing) {
+                            // the size of the original tells whether the variant is worth persisting
+                            ByteBuffer binary = mPersistence.loadPooledBytes(key);
+                            if (binary != null) {
+                                try {
+                                    data = BitmapUtil.decodeByteArray(binary.array(), binary.limit(), mMaxNumOfPixelsConstraint, targetWidth, targetHeight);
+                                }
+                                finally {
+                                    BitmapUtil.getByteArrayPool().put(binary.array());
+                                }
+                                if (data != null)
+                                    persistVariant(request, data, binary.limit());
+                            }
+                        }
+                        else if (changed == null && !persistenceChecked) {
+                            data = mPersistence.loadData(key, targetWidth, targetHeight);
+                        }
                         if(data != null) {
                             if(DEBUG)  Log.d(TAG, "[newRequestCall] found in persistent: " + request.getUri().toString());
                             
                             // load it into memory
-                            if (mCache != null)
-                                mCache.storeData(key, data);
+                            handle = storeVariant(request, data);
 
                             fireLoadProgress(request, 1, 1); // fire progress done
                         }
@@ -430,43 +722,46 @@ public class HttpImageManager{
                             long millis = System.currentTimeMillis();
                             
                             byte[] binary = null;
-                            HttpResponse httpResp = mNetworkResourceLoader.load(request.getUri());
+                            Transport.Response httpResp = (changed != null) ? changed : mNetworkResourceLoader.load(request.getUri());
 
-                            if(DEBUG) {
-                                Header[] headers = httpResp.getAllHeaders();
-                                for (Header header :headers) {
-                                    Log.v(TAG, header.toString());
-                                }
+                            if(DEBUG) Log.v(TAG, "[newRequestCall] status: " + httpResp.getStatusCode() + ", Content-Type: " + httpResp.getHeader("Content-Type"));
+
+                            // an error page is neither decoded nor stored
+                            int status = httpResp.getStatusCode();
+                            if (status != HttpURLConnection.HTTP_OK) {
+                                httpResp.close();
+                                throw new IOException("HTTP " + status + " loading " + request.getUri());
                             }
 
-                            HttpEntity entity = httpResp.getEntity();
-                            if (entity != null) {
-                                InputStream responseStream = entity.getContent();
+                            int length = 0;
+                            File tmp = mPersistence.newTempFile(key);
+                            if (tmp != null) {
+                                // written to disk as it arrives and decoded from there, never held whole in memory
                                 try {
-                                    Header header = entity.getContentEncoding();
-                                    if (header != null && header.getValue() != null && header.getValue().contains("gzip")) {
-                                        responseStream =  new GZIPInputStream(responseStream);
-                                    }
-
-                                    responseStream = new FlushedInputStream(responseStream); //patch the inputstream
-                                    
-                                    long contentSize = entity.getContentLength();
-                                    binary = readInputStreamProgressively(responseStream, (int)contentSize, request);
+                                    length = writeEntity(httpResp, request, tmp);
+                                    if (length > 0)
+                                        data = BitmapUtil.decodeFile(tmp.getPath(), mMaxNumOfPixelsConstraint, targetWidth, targetHeight);
+                                }
+                                finally {
+                                    if (data == null)
+                                        mPersistence.discardTempFile(tmp);
+                                }
+                            }
+                            else {
+                                binary = readEntity(httpResp, request);
+                                if (binary != null) {
+                                    length = binary.length;
 //                                    if(request.isThumbnailed()){
 //                                    	BitmapFactory.Options opt = new BitmapFactory.Options();				//get a scrubbed version of this bitmap
 //                            			opt.inSampleSize = SCRUB_FACTOR;				    
 //                                    	data = BitmapFactory.decodeByteArray(binary, 0, binary.length, opt);
 //                                    }else{
-                                    	data = BitmapUtil.decodeByteArray(binary, mMaxNumOfPixelsConstraint);
+                                    	data = BitmapUtil.decodeByteArray(binary, mMaxNumOfPixelsConstraint, targetWidth, targetHeight);
 //                                    }
-//                                    
-                                } 
-                                finally {
-                                    if(responseStream != null) {
-                                        try { responseStream.close(); } catch (IOException e) {}
-                                    }
                                 }
                             }
+                            // fetched just now
+                            revalidateLater = false;
 
                             if(data == null) 
                                 throw new RuntimeException("data from remote can't be decoded to bitmap");
@@ -474,6 +769,25 @@ public class HttpImageManager{
                             if(DEBUG) Log.v(TAG, "[newRequestCall] decoded image: " + data.getWidth() + "x" + data.getHeight() );
                             if(DEBUG) Log.v(TAG, "[newRequestCall] time consumed: " + (System.currentTimeMillis() - millis));
 
+                            // persist it. Save the file as-is, preserving the format.
+                            if (tmp != null) {
+                            	// the encoded memory cache is filled on the next disk hit
+                            	mPersistence.storeFile(key, tmp);
+                            	storeValidators(key, CacheValidators.fromResponse(httpResp, millis));
+                            }
+                            else if(binary!=null) {
+                            	mPersistence.storeData(key, binary);
+                            	storeValidators(key, CacheValidators.fromResponse(httpResp, millis));
+                            }
+                            // the sizes of a changed image only go once the new copy replaced it
+                            if (changed != null)
+                            	dropVariants(request);
+                            if (tmp == null && binary != null && encodedCache != null)
+                            	encodedCache.storeData(key, binary);
+
+                            if (variantMissing && length > 0)
+                                persistVariant(request, data, length);
+
                             //apply filter(s)
                             if (mFilter != null) {
                                 try {
@@ -484,39 +798,28 @@ public class HttpImageManager{
                             }
                             
                             // load it into memory
-                            if (mCache != null)
-                                mCache.storeData(key, data);
-
-                            // persist it. Save the file as-is, preserving the format.
-                            if(binary!=null)
-                            	mPersistence.storeData(key, binary);
+                            handle = storeVariant(request, data);
                         }
                     }
 
                     if(data != null && request.getImageView() != null) {
                         final Bitmap finalData = data;
+                        final BitmapHandle finalHandle = handle;
                         final ImageView iv = request.getImageView();
 
                         synchronized ( iv ) {
                             if ( iv.getTag() == request.getUri() ) {
+                                // the handle reference now belongs to the posted runnable
+                                handle = null;
                                 mHandler.post(new Runnable() {
                                     @Override
                                     public void run() {
                                         if ( iv.getTag() == request.getUri()) {
-                                        	
-//                                			Drawable imageDrawable = iv.getDrawable();
-//                                			if(imageDrawable!=null){
-//                                				
-////                                				Drawable defaultBitmap = drawableToBitmap(imageDrawable);
-//                                				iv.setImageDrawable(imageDrawable);
-//                                			}
-                                        	
                                         	if(DEBUG) Log.v(TAG, "[newRequestCall] setImageBitmapWithFade for request " + request.getUri());
-                                        	if(request.isAnimated())
-                                        		setImageBitmapWithFade(iv, finalData);
-                                        	else{
-                                        		iv.setImageBitmap(finalData);
-                                        	}
+                                        	bindImageView(iv, finalData, finalHandle, request.isAnimated());
+                                        }
+                                        else if (finalHandle != null) {
+                                        	finalHandle.release();
                                         }
                                     }
                                 });
@@ -526,6 +829,9 @@ public class HttpImageManager{
 
                     // callback listener if any
                     fireLoadResponse(request, data);
+
+                    if (revalidateLater && data != null)
+                        scheduleRevalidation(request);
                 }
                 catch (Throwable e) {
                     fireLoadFailure(request, e);
@@ -533,6 +839,10 @@ public class HttpImageManager{
                     	Log.e(TAG, "[newRequestCall] error handling request " + request.getUri(), e);
                 }
                 finally{
+                    if (handle != null) {
+                        handle.release();
+                    }
+
                     synchronized (mActiveRequests) {
                         mActiveRequests.remove(request);
                         mActiveRequests.notifyAll();  // wake up pending requests who's querying the same URL. 
@@ -545,12 +855,483 @@ public class HttpImageManager{
     }
 
 
+    /**
+     * Store a decoded bitmap in the memory cache under the key of its size.
+     * @return reference on the cached bitmap, null if not cached
+     */
+    private BitmapHandle storeVariant(LoadRequest r, Bitmap data) {
+        if (mCache == null)
+            return null;
+        BitmapHandle handle = mCache.storeHandle(r.getMemoryKey(), data);
+        if (handle != null) {
+            synchronized (mVariants) {
+                ArrayList<String> keys = mVariants.get(r.getHashedUri());
+                if (keys == null) {
+                    keys = new ArrayList<String>(2);
+                    mVariants.put(r.getHashedUri(), keys);
+                }
+                if (!keys.contains(r.getMemoryKey()))
+                    keys.add(r.getMemoryKey());
+            }
+        }
+        return handle;
+    }
+
+
+    /**
+     * Revalidate the persisted copy of an image once it is stale. A copy that can not be
+     * revalidated, e.g. while offline, is served stale.
+     * @return the response carrying the image if it changed, null to serve the persisted copy
+     */
+    private Transport.Response revalidateIfStale(LoadRequest r) {
+        String key = r.getHashedUri();
+        // the image first, the validators of an image that is not persisted are not worth a read
+        if (!mPersistence.exists(key))
+            return null;
+        long now = System.currentTimeMillis();
+        // nor are those of an image known to be fresh
+        Long expires;
+        synchronized (mExpiries) {
+            expires = mExpiries.get(key);
+        }
+        if (expires != null && now < expires)
+            return null;
+        CacheValidators validators = loadValidators(key);
+        if (validators == null || !validators.isStale(now))
+            return null;
+
+        try {
+            Transport.Response httpResp = mNetworkResourceLoader.load(r.getUri(), validators.etag, validators.lastModified);
+            int status = httpResp.getStatusCode();
+            if (status == HttpURLConnection.HTTP_OK) {
+                // its sizes are dropped by the caller, once the new body is stored
+                if(DEBUG) Log.d(TAG, "[revalidateIfStale] changed: " + r.getUri());
+                return httpResp;
+            }
+            httpResp.close();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if(DEBUG) Log.d(TAG, "[revalidateIfStale] not modified: " + r.getUri());
+                storeValidators(key, validators.refreshedBy(httpResp, now));
+            }
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.w(TAG, "[revalidateIfStale] serving stale " + r.getUri(), e);
+        }
+        return null;
+    }
+
+
+    /**
+     * Revalidate the persisted copy of an image in the background, and load the image again for
+     * the request if it changed.
+     */
+    private void scheduleRevalidation(final LoadRequest r) {
+        final String key = r.getHashedUri();
+        // at most one revalidation of an image queued or running
+        synchronized (mRevalidating) {
+            if (!mRevalidating.add(key))
+                return;
+        }
+        mRevalidationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    Transport.Response changed = revalidateIfStale(r);
+                    if (changed == null)
+                        return;
+                    long millis = System.currentTimeMillis();
+                    byte[] binary = null;
+                    File tmp = mPersistence.newTempFile(key);
+                    if (tmp != null) {
+                        boolean image = false;
+                        try {
+                            image = writeEntity(changed, null, tmp) > 0 && isImage(tmp);
+                        }
+                        finally {
+                            if (!image)
+                                mPersistence.discardTempFile(tmp);
+                        }
+                        if (!image) {
+                            if(DEBUG) Log.w(TAG, "[scheduleRevalidation] not an image: " + r.getUri());
+                            return;
+                        }
+                        mPersistence.storeFile(key, tmp);
+                    }
+                    else {
+                        binary = readEntity(changed, null);
+                        if (binary == null || BitmapUtil.getImageOptions(new ByteArrayInputStream(binary)).outWidth <= 0) {
+                            if(DEBUG) Log.w(TAG, "[scheduleRevalidation] not an image: " + r.getUri());
+                            return;
+                        }
+                        mPersistence.storeData(key, binary);
+                    }
+                    storeValidators(key, CacheValidators.fromResponse(changed, millis));
+                    // dropped from memory once the new copy is stored, so served from it
+                    dropVariants(r);
+                    if (binary != null) {
+                        EncodedMemoryCache encodedCache = mEncodedCache;
+                        if (encodedCache != null)
+                            encodedCache.storeData(key, binary);
+                    }
+
+                    if(DEBUG) Log.d(TAG, "[scheduleRevalidation] reloading changed image: " + r.getUri());
+                    mExecutor.execute(newRequestCall(r, false));
+                }
+                catch (Throwable e) {
+                    if(DEBUG) Log.w(TAG, "[scheduleRevalidation] error revalidating " + r.getUri(), e);
+                }
+                finally {
+                    synchronized (mRevalidating) {
+                        mRevalidating.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Read the body of a response, gunzipped if needed.
+     * @param r request notified of the progress, null for none
+     * @return null if the response has no body
+     */
+    private byte[] readEntity(Transport.Response httpResp, LoadRequest r) throws IOException {
+        InputStream responseStream = httpResp.getContent();
+        if (responseStream == null) {
+            httpResp.close();
+            return null;
+        }
+        try {
+            // the content length is the one of the compressed body
+            long contentSize = -1;
+            if (isGzipped(httpResp)) {
+                responseStream =  new GZIPInputStream(responseStream);
+            }
+            else {
+                contentSize = httpResp.getContentLength();
+            }
+
+            responseStream = new FlushedInputStream(responseStream); //patch the inputstream
+
+            return readInputStreamProgressively(responseStream, (int)contentSize, r);
+        }
+        finally {
+            try { responseStream.close(); } catch (IOException e) {}
+            httpResp.close();
+        }
+    }
+
+
+    /**
+     * Stream the body of a response to a file through a small buffer, gunzipped if needed, and
+     * sync it to disk.
+     * @param r request notified of the progress, null for none
+     * @return number of bytes written, 0 if the response has no body
+     */
+    private int writeEntity(Transport.Response httpResp, LoadRequest r, File file) throws IOException {
+        InputStream responseStream = httpResp.getContent();
+        if (responseStream == null) {
+            httpResp.close();
+            return 0;
+        }
+        FileOutputStream output = null;
+        ByteArrayPool pool = BitmapUtil.getByteArrayPool();
+        try {
+            // the content length is the one of the compressed body
+            long totalSize = -1;
+            if (isGzipped(httpResp)) {
+                responseStream =  new GZIPInputStream(responseStream);
+            }
+            else {
+                totalSize = httpResp.getContentLength();
+            }
+
+            responseStream = new FlushedInputStream(responseStream); //patch the inputstream
+
+            fireLoadProgress(r, 3, 1); // compensate 33% of total time, which was consumed by establishing HTTP connection
+
+            output = new FileOutputStream(file);
+            long count = 0;
+            byte[] buf = pool.get(STREAM_BUFFER_SIZE);
+            try {
+                int readed;
+                while ((readed = responseStream.read(buf)) != -1) {
+                    output.write(buf, 0, readed);
+                    count += readed;
+                    if (totalSize > 0)
+                        fireLoadProgress(r, totalSize, (totalSize + count) >> 1);
+                }
+            }
+            finally {
+                pool.put(buf);
+            }
+
+            if (totalSize > 0 && count != totalSize)
+                throw new IOException("Unexpected readed size. current: " + count + ", excepted: " + totalSize);
+            if (count > Integer.MAX_VALUE) 
+                throw new IOException("content too large: " + (count / (1024 * 1024 )) + " M");
+            fireLoadProgress(r, count, count);
+
+            output.flush();
+            // on disk before the persistence renames it
+            output.getFD().sync();
+            return (int) count;
+        }
+        finally {
+            if (output != null) {
+                try { output.close(); } catch (IOException e) {}
+            }
+            try { responseStream.close(); } catch (IOException e) {}
+            httpResp.close();
+        }
+    }
+
+
+    private static boolean isGzipped(Transport.Response httpResp) {
+        String encoding = httpResp.getHeader("Content-Encoding");
+        return encoding != null && encoding.contains("gzip");
+    }
+
+
+    private static boolean isImage(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        return options.outWidth > 0;
+    }
+
+
+    private CacheValidators loadValidators(String key) {
+        byte[] data = mPersistence.loadBytes(CacheValidators.keyFor(key));
+        CacheValidators validators = (data != null) ? CacheValidators.fromBytes(data) : null;
+        // an image without validators is never revalidated
+        rememberExpiry(key, (validators != null) ? validators.expires : CacheValidators.FOREVER);
+        return validators;
+    }
+
+
+    private void storeValidators(String key, CacheValidators validators) {
+        if (validators.isUseful())
+            mPersistence.storeData(CacheValidators.keyFor(key), validators.toBytes());
+        else
+            mPersistence.invalidate(CacheValidators.keyFor(key));
+        rememberExpiry(key, validators.expires);
+    }
+
+
+    private void rememberExpiry(String key, long expires) {
+        synchronized (mExpiries) {
+            mExpiries.put(key, expires);
+        }
+    }
+
+
+    /**
+     * Drop the decoded sizes of an image that changed on the server, from memory and disk. The
+     * image itself is overwritten once downloaded.
+     */
+    private void dropVariants(LoadRequest r) {
+        ArrayList<String> keys;
+        synchronized (mVariants) {
+            keys = mVariants.remove(r.getHashedUri());
+        }
+        if (keys == null)
+            keys = new ArrayList<String>(1);
+        if (!keys.contains(r.getMemoryKey()))
+            keys.add(r.getMemoryKey());
+        for (String k : keys) {
+            if (mCache != null)
+                mCache.invalidate(k);
+            if (mPersistVariants && !k.equals(r.getHashedUri()))
+                mPersistence.invalidate(k);
+        }
+        EncodedMemoryCache encodedCache = mEncodedCache;
+        if (encodedCache != null)
+            encodedCache.invalidate(r.getHashedUri());
+    }
+
+
+    /**
+     * Persist a decoded variant under its memory key, if encoding it again makes it much smaller
+     * than the original.
+     */
+    private void persistVariant(LoadRequest r, Bitmap data, int originalLength) {
+        byte[] encoded = BitmapUtil.compress(data, VARIANT_JPEG_QUALITY);
+        if (encoded != null && encoded.length <= originalLength * MAX_VARIANT_SIZE_RATIO) {
+            if(DEBUG) Log.v(TAG, "[persistVariant] " + r.getMemoryKey() + " " + encoded.length + "/" + originalLength + " bytes");
+            mPersistence.storeData(r.getMemoryKey(), encoded);
+        }
+    }
+
+
+    /**
+     * Serve a request from the largest size of the same image held by the memory cache, scaled
+     * down to the requested size, so no decode is needed.
+     * @return reference on the bitmap for the requested size, null if no cached size is large enough
+     */
+    private BitmapHandle loadLargerVariant(LoadRequest r) {
+        if (!r.hasTargetSize())
+            return null;
+
+        String[] keys;
+        synchronized (mVariants) {
+            ArrayList<String> variants = mVariants.get(r.getHashedUri());
+            if (variants == null)
+                return null;
+            keys = variants.toArray(new String[variants.size()]);
+        }
+
+        BitmapHandle best = null;
+        for (String k : keys) {
+            BitmapHandle h = mCache.loadHandle(k);
+            if (h == null) {
+                // evicted since
+                synchronized (mVariants) {
+                    ArrayList<String> variants = mVariants.get(r.getHashedUri());
+                    if (variants != null)
+                        variants.remove(k);
+                }
+                continue;
+            }
+            Bitmap b = h.getBitmap();
+            boolean covers = b.getWidth() >= r.getTargetWidth() && b.getHeight() >= r.getTargetHeight();
+            if (covers && (best == null || b.getWidth() > best.getBitmap().getWidth())) {
+                if (best != null)
+                    best.release();
+                best = h;
+            } else {
+                h.release();
+            }
+        }
+        if (best == null)
+            return null;
+
+        Bitmap scaled = BitmapUtil.scaleToCover(best.getBitmap(), r.getTargetWidth(), r.getTargetHeight(), false);
+        if (scaled == best.getBitmap()) {
+            // already the right size, display it as-is
+            return best;
+        }
+        best.release();
+        if(DEBUG) Log.v(TAG, "[loadLargerVariant] scaled cached bitmap for " + r.getUri());
+        return storeVariant(r, scaled);
+    }
+
+
+    /**
+     * Display a bitmap in an ImageView, keeping a reference on it for as long as it is displayed.
+     * The reference on the bitmap previously displayed by the ImageView is released. Call on the UI thread.
+     * @param handle reference on the bitmap, null if the bitmap is not cached
+     */
+    private void bindImageView(ImageView iv, Bitmap bitmap, BitmapHandle handle, boolean animated) {
+        final BitmapHandle previous;
+        synchronized (mBoundHandles) {
+            previous = (handle != null) ? mBoundHandles.put(iv, handle) : mBoundHandles.remove(iv);
+        }
+
+        if (animated)
+            setImageBitmapWithFade(iv, bitmap);
+        else
+            iv.setImageBitmap(bitmap);
+
+        if (previous != null) {
+            if (animated) {
+                // the previous bitmap is still drawn until the cross fade is over
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        previous.release();
+                    }
+                }, FADE_DURATION_MILLIS);
+            }
+            else {
+                previous.release();
+            }
+        }
+    }
+
+
+    /**
+     * Release the bitmap displayed by an ImageView loaded through this manager, e.g. when the
+     * view is discarded. The ImageView is cleared since its bitmap may be reused or recycled. 
+     * Call on the UI thread.
+     * @param iv
+     */
+    public void releaseImageView(ImageView iv) {
+        BitmapHandle previous;
+        synchronized (mBoundHandles) {
+            previous = mBoundHandles.remove(iv);
+        }
+        if (previous != null) {
+            iv.setImageDrawable(null);
+            previous.release();
+        }
+    }
+
+
     /**
      * Make memory cache empty, release all bitmap reference held. 
      */
     public void emptyCache () {
         if ( mCache != null) 
             mCache.clear();
+        if ( mEncodedCache != null) 
+            mEncodedCache.clear();
+    }
+
+
+    /**
+     * Shrink the memory caches and the bitmap pool according to a ComponentCallbacks2 trim level,
+     * in least recently used order. 
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* levels
+     */
+    public void trim (int level) {
+        if(DEBUG) Log.d(TAG, "[trim] level " + level);
+        // the cache first, the bitmaps it releases may land in the pool
+        if ( mCache != null) 
+            mCache.trim(level);
+        if ( mEncodedCache != null) 
+            mEncodedCache.trim(level);
+        BitmapPool pool = BitmapUtil.getBitmapPool();
+        if ( pool != null) 
+            pool.trim(level);
+        BitmapUtil.getByteArrayPool().trim(level);
+    }
+
+
+    /**
+     * Release all the memory that can be, in answer to ComponentCallbacks.onLowMemory().
+     */
+    public void onLowMemory () {
+        trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+
+    /**
+     * Trim automatically when the system asks for memory, including when the app goes to the
+     * background. Does nothing before Ice Cream Sandwich, forward Application.onLowMemory()
+     * to {@link #onLowMemory()} there.
+     * @param context
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public void registerMemoryCallbacks (Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+            return;
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trim(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                HttpImageManager.this.onLowMemory();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
     }
 
 
@@ -569,7 +1350,7 @@ public class HttpImageManager{
 
         fireLoadProgress(r, 3, 1); // compensate 33% of total time, which was consumed by establishing HTTP connection
 
-        if (totalSize > 0) { // content length is known
+        if (totalSize > 0) { // content length is known, read right into the array the caches keep
             byte[] data = new byte[totalSize];
             int offset = 0;
             int readed;
@@ -589,22 +1370,33 @@ public class HttpImageManager{
             return new byte[0];
         }
         else {
-            // content length is unknown
-            byte[] buf = new byte[1024];
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            long count = 0;
-            int readed;
-            while ((readed = is.read(buf)) != -1) {
-                output.write(buf, 0, readed);
-                count += readed;
-            }
-
-            fireLoadProgress(r, count, count);
+            // content length is unknown, read into pooled buffers doubled as needed
+            ByteArrayPool pool = BitmapUtil.getByteArrayPool();
+            byte[] buf = pool.get(STREAM_BUFFER_SIZE);
+            try {
+                int count = 0;
+                int readed;
+                for (;;) {
+                    if (count == buf.length) {
+                        if (count == Integer.MAX_VALUE) 
+                            throw new IOException("content too large: " + (count / (1024 * 1024 )) + " M");
+                        buf = pool.grow(buf, count);
+                    }
+                    if ((readed = is.read(buf, count, buf.length - count)) == -1)
+                        break;
+                    count += readed;
+                }
 
-            if (count > Integer.MAX_VALUE) 
-                throw new IOException("content too large: " + (count / (1024 * 1024 )) + " M");
+                fireLoadProgress(r, count, count);
 
-            return output.toByteArray();
+                // the only allocation, the content is kept by the caches
+                byte[] data = new byte[count];
+                System.arraycopy(buf, 0, data, 0, count);
+                return data;
+            }
+            finally {
+                pool.put(buf);
+            }
         }
     }
 
@@ -626,6 +1418,8 @@ public class HttpImageManager{
 
 
     private void fireLoadProgress(final LoadRequest r, final long totalContentSize, final long loadedContentSize) {
+        if (r == null)
+            return; // background revalidation
         if(DEBUG) Log.v(TAG, "[fireLoadProgress] " + r.getUri());
     	
     	if ( r.mListener != null) {
@@ -704,7 +1498,7 @@ public class HttpImageManager{
 			TransitionDrawable transitionDrawable = new TransitionDrawable(arrayDrawable);
 			transitionDrawable.setCrossFadeEnabled(true);
 			imageView.setImageDrawable(transitionDrawable);
-			transitionDrawable.startTransition(250);
+			transitionDrawable.startTransition(FADE_DURATION_MILLIS);
 		} else {
 			imageView.setImageDrawable(drawable);
 		}
@@ -722,35 +1516,36 @@ public class HttpImageManager{
 	
 	public void pause(){
 		mExecutor.pause();
+		mRevalidationExecutor.pause();
 	}
 	
 	public void resume(){
 		mExecutor.resume();
+		mRevalidationExecutor.resume();
 	}
 	
 	public double getImageRatioOnly(String url){
 		double ratio = 0;
-        HttpResponse httpResp;
+        Transport.Response httpResp;
 		try {
 			httpResp = mNetworkResourceLoader.load(Uri.parse(url));
-			HttpEntity entity = httpResp.getEntity();
-	        if (entity != null) {
-	            InputStream responseStream = entity.getContent();
-	            try {
-	                Header header = entity.getContentEncoding();
-	                if (header != null && header.getValue() != null && header.getValue().contains("gzip")) {
+	        InputStream responseStream = httpResp.getContent();
+	        try {
+	            if (responseStream != null) {
+	                if (isGzipped(httpResp)) {
 	                    responseStream =  new GZIPInputStream(responseStream);
 	                }
 
 	                responseStream = new FlushedInputStream(responseStream); //patch the inputstream
 	                
 	                ratio = BitmapUtil.getRatio(responseStream);
-	            } 
-	            finally {
-	                if(responseStream != null) {
-	                    try { responseStream.close(); } catch (IOException e) {}
-	                }
 	            }
+	        } 
+	        finally {
+	            if(responseStream != null) {
+	                try { responseStream.close(); } catch (IOException e) {}
+	            }
+	            httpResp.close();
 	        }
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -761,27 +1556,26 @@ public class HttpImageManager{
 	
 	public BitmapFactory.Options getImageOptionsOnly(String url){
 		BitmapFactory.Options options = null;
-        HttpResponse httpResp;
+        Transport.Response httpResp;
 		try {
 			httpResp = mNetworkResourceLoader.load(Uri.parse(url));
-			HttpEntity entity = httpResp.getEntity();
-	        if (entity != null) {
-	            InputStream responseStream = entity.getContent();
-	            try {
-	                Header header = entity.getContentEncoding();
-	                if (header != null && header.getValue() != null && header.getValue().contains("gzip")) {
+	        InputStream responseStream = httpResp.getContent();
+	        try {
+	            if (responseStream != null) {
+	                if (isGzipped(httpResp)) {
 	                    responseStream =  new GZIPInputStream(responseStream);
 	                }
 
 	                responseStream = new FlushedInputStream(responseStream); //patch the inputstream
 	                
 	                options = BitmapUtil.getImageOptions(responseStream);
-	            } 
-	            finally {
-	                if(responseStream != null) {
-	                    try { responseStream.close(); } catch (IOException e) {}
-	                }
 	            }
+	        } 
+	        finally {
+	            if(responseStream != null) {
+	                try { responseStream.close(); } catch (IOException e) {}
+	            }
+	            httpResp.close();
 	        }
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -0,0 +1,199 @@
+package android.httpimage;
+
+import java.util.ArrayList;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Runs the disk cache housekeeping (eviction, expiry, compaction, cleanup of orphan temporary
+ * files) on a single low priority thread, out of the way of the image loads.
+ * <p>
+ * Work is done in small slices, and only while the request executor is idle or paused: a load
+ * submitted meanwhile waits for at most the slice in progress. The slices are also held to an
+ * I/O budget, in bytes read or written per second, so the housekeeping never saturates the
+ * storage even when the app is idle.
+ * <p>
+ * Persistences schedule their tasks on {@link #getDefault()}, which HttpImageManager binds to its
+ * executor.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class MaintenanceScheduler {
+
+    private static final String TAG = MaintenanceScheduler.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final long DEFAULT_IO_BUDGET = 1024 * 1024;
+    /** returned by a task with nothing left to do */
+    public static final long DONE = -1;
+    /** bytes charged for a file system operation: a delete, a rename or a directory listing */
+    public static final int FILE_OP_COST = 4096;
+
+    /** max bytes of I/O asked of a single slice */
+    private static final long SLICE_BYTES = 64 * 1024;
+    /** period at which a busy executor is checked again */
+    private static final long BUSY_POLL_MILLIS = 250;
+
+
+    /**
+     * Housekeeping work done a slice at a time.
+     */
+    public static interface Task {
+        /**
+         * Do a small batch of work, stopping once about maxBytes were read or written. At least
+         * one step is done even if maxBytes is 0.
+         * @return number of bytes read or written, or DONE if there was nothing left to do
+         */
+        public long runSlice(long maxBytes);
+    }
+
+
+    private static MaintenanceScheduler sDefault;
+
+    // round robin, each task is pending at most once
+    private final ArrayList<Task> mPending = new ArrayList<Task>();
+    private volatile PausableThreadPoolExecutor mExecutor;
+    private volatile long mIoBudget = DEFAULT_IO_BUDGET;
+    private Thread mThread;
+    private long mTokens;
+    private long mLastRefill;
+
+
+    public static synchronized MaintenanceScheduler getDefault() {
+        if (sDefault == null) {
+            sDefault = new MaintenanceScheduler();
+        }
+        return sDefault;
+    }
+
+
+    /**
+     * Only run while executor is idle or paused.
+     * @param executor null to run regardless of the loads
+     */
+    public void setExecutor(PausableThreadPoolExecutor executor) {
+        mExecutor = executor;
+    }
+
+
+    /**
+     * @param bytesPerSecond max number of bytes the tasks may read or write per second
+     */
+    public void setIoBudget(long bytesPerSecond) {
+        mIoBudget = Math.max(1, bytesPerSecond);
+    }
+
+
+    public long getIoBudget() {
+        return mIoBudget;
+    }
+
+
+    /**
+     * Run task until it is done. Scheduling a task already pending does nothing.
+     */
+    public synchronized void schedule(Task task) {
+        if (mPending.contains(task)) {
+            return;
+        }
+        mPending.add(task);
+        if (mThread == null) {
+            mThread = new Thread(TAG) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runLoop();
+                }
+            };
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+
+    /**
+     * @return false if the executor is running loads
+     */
+    public boolean isIdle() {
+        PausableThreadPoolExecutor executor = mExecutor;
+        return executor == null || executor.isPaused() || executor.isIdle();
+    }
+
+
+    private void runLoop() {
+        for (;;) {
+            Task task;
+            long maxBytes;
+            try {
+                synchronized (this) {
+                    while (mPending.isEmpty()) {
+                        wait();
+                    }
+                }
+                while (!isIdle()) {
+                    Thread.sleep(BUSY_POLL_MILLIS);
+                }
+                maxBytes = takeTokens();
+                synchronized (this) {
+                    task = mPending.remove(0);
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            long used;
+            try {
+                used = task.runSlice(maxBytes);
+            }
+            catch (Throwable e) {
+                Log.e(TAG, "[runLoop] error running " + task, e);
+                used = DONE;
+            }
+
+            synchronized (this) {
+                if (used == DONE) {
+                    if(DEBUG) Log.v(TAG, "[runLoop] done: " + task);
+                }
+                else {
+                    mTokens -= used;
+                    // rescheduled meanwhile it already is back in the queue
+                    if (!mPending.contains(task)) {
+                        mPending.add(task);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Wait until the budget allows some I/O.
+     * @return number of bytes the next slice may use
+     */
+    private long takeTokens() throws InterruptedException {
+        for (;;) {
+            long wait;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                long budget = mIoBudget;
+                if (mLastRefill == 0) {
+                    mTokens = budget;
+                }
+                else {
+                    // at most one second of budget is saved up
+                    mTokens = Math.min(budget, mTokens + (now - mLastRefill) * budget / 1000);
+                }
+                mLastRefill = now;
+                if (mTokens > 0) {
+                    return Math.min(mTokens, SLICE_BYTES);
+                }
+                wait = 1 + (-mTokens * 1000 / budget);
+            }
+            Thread.sleep(wait);
+        }
+    }
+}
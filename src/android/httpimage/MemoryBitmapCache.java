@@ -1,161 +1,654 @@
 package android.httpimage;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.util.Log;
 
 
 /**
- * Basic implementation of BitmapCache 
- * 
+ * Basic implementation of BitmapCache.
+ * <p>
+ * Entries are kept in access order so the least recently used bitmap is always the eldest
+ * one, eviction is O(1). The cache is bounded by the total number of bytes held by the
+ * cached bitmaps (row bytes x height), not by the number of entries.
+ * <p>
+ * An {@link AdmissionPolicy} can be plugged in to make the cache frequency aware. New entries
+ * then land in a small LRU admission window; when they fall out of it, the policy decides
+ * whether they are worth evicting the least recently used entries of the main region, or
+ * whether they are dropped instead (W-TinyLFU layout).
+ * <p>
+ * Bitmaps are wrapped in reference counted {@link BitmapHandle}s, the cache holding one
+ * reference while the entry is cached. Callers displaying a bitmap take their own reference
+ * with {@link #loadHandle(String)} or {@link #storeHandle(String, Bitmap)}. Once evicted and no
+ * longer referenced, a bitmap is handed to the {@link BitmapPool} so its pixel memory is reused
+ * by the next decodes, or recycled if so configured, instead of being garbage collected.
+ * <p>
+ * Alternatively evicted bitmaps can be kept in a victim tier of soft references, which the GC
+ * clears when memory runs low. A lookup missing the strong cache checks the victim tier before
+ * the caller goes to persistence, and promotes the bitmap back on a hit.
+ *
  * @author zonghai@gmail.com
  * @author abezzarg@gmail.com
  */
-public class MemoryBitmapCache implements BitmapCache{
-    
+public class MemoryBitmapCache implements MemoryCache{
+
+    /**
+     * Decides which of two entries is worth keeping when the cache is full.
+     */
+    public static interface AdmissionPolicy {
+
+        /**
+         * Record a lookup of a key, whether it hits or misses.
+         * @param key
+         */
+        public void recordAccess(String key);
+
+        /**
+         * @return true if the candidate should be admitted at the cost of evicting the victim
+         */
+        public boolean admit(String candidateKey, String victimKey);
+    }
+
+
     private static class CacheEntry {
-        public Bitmap data;
+        public BitmapHandle handle;
         public int nUsed;
         public long timestamp;
+        public int size;
     }
-    
-    
+
+
+    private static class VictimReference extends SoftReference<BitmapHandle> {
+        public final String key;
+
+        public VictimReference(String key, BitmapHandle handle, ReferenceQueue<BitmapHandle> queue) {
+            super(handle, queue);
+            this.key = key;
+        }
+    }
+
+
     private static final String TAG = MemoryBitmapCache.class.getSimpleName();
     private static final boolean DEBUG = false;
-    
+
+    public static final float DEFAULT_WINDOW_FRACTION = 0.01f;
+
     private int mMaxSize;
-//    private Map<String, SoftReference<CacheEntry>> mMap = new ConcurrentHashMap<String, SoftReference<CacheEntry>> ();
-    private Map<String, CacheEntry> mMap = new ConcurrentHashMap<String, CacheEntry> ();
+    private int mSize;
+    private LinkedHashMap<String, CacheEntry> mMap = new LinkedHashMap<String, CacheEntry> (16, 0.75f, true);
+
+    private AdmissionPolicy mPolicy;
+    private float mWindowFraction;
+    private int mWindowSize;
+    private LinkedHashMap<String, CacheEntry> mWindow = new LinkedHashMap<String, CacheEntry> (16, 0.75f, true);
+
+    private final BitmapRecycler mRecycler = new BitmapRecycler();
+
+    private HashMap<String, VictimReference> mVictims;
+    private ReferenceQueue<BitmapHandle> mVictimQueue = new ReferenceQueue<BitmapHandle>();
+
+    private int mHitCount;
+    private int mVictimHitCount;
+    private int mMissCount;
+
+    /**
+     * max number of bytes the cached bitmaps may hold
+     * @param maxBytes
+     */
+    public MemoryBitmapCache (int maxBytes) {
+        this.mMaxSize = maxBytes;
+    }
+
+
+    /**
+     * Create a cache bounded by a fraction of the maximum heap size of the VM.
+     * @param heapFraction between 0 and 1
+     */
+    public static MemoryBitmapCache fromHeapFraction (float heapFraction) {
+        return new MemoryBitmapCache(computeHeapBudget(heapFraction));
+    }
+
+
+    /**
+     * Number of bytes representing the given fraction of the maximum heap size.
+     * @param heapFraction between 0 and 1
+     */
+    public static int computeHeapBudget (float heapFraction) {
+        if (heapFraction <= 0 || heapFraction > 1) {
+            throw new IllegalArgumentException("heap fraction should be in ]0, 1] : " + heapFraction);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() * heapFraction);
+    }
+
+
+    /**
+     * Number of bytes used by the pixels of a bitmap.
+     * @param bitmap
+     */
+    public static int sizeOf (Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+
+    /**
+     * Plug in an admission policy, using the default admission window size.
+     * @param policy null to go back to plain LRU
+     */
+    public void setAdmissionPolicy(AdmissionPolicy policy){
+    	setAdmissionPolicy(policy, DEFAULT_WINDOW_FRACTION);
+    }
+
+
+    /**
+     * Plug in an admission policy.
+     * @param policy null to go back to plain LRU
+     * @param windowFraction part of the byte budget given to the admission window
+     */
+    public synchronized void setAdmissionPolicy(AdmissionPolicy policy, float windowFraction){
+    	if (windowFraction < 0 || windowFraction >= 1) {
+    		throw new IllegalArgumentException("window fraction should be in [0, 1[ : " + windowFraction);
+    	}
+    	// entries waiting for admission are moved as-is to the main region
+    	mMap.putAll(mWindow);
+    	mWindow.clear();
+    	mWindowSize = 0;
+
+    	mPolicy = policy;
+    	mWindowFraction = windowFraction;
+    	trimToSize(mMaxSize);
+    }
+
+
+    public synchronized AdmissionPolicy getAdmissionPolicy(){
+    	return mPolicy;
+    }
+
+
+    @Override
+    public void setBitmapPool(BitmapPool pool){
+    	mRecycler.setBitmapPool(pool);
+    }
+
+
+    @Override
+    public BitmapPool getBitmapPool(){
+    	return mRecycler.getBitmapPool();
+    }
+
+
+    @Override
+    public void setRecycleOnRelease(boolean recycle){
+    	mRecycler.setRecycleOnRelease(recycle);
+    }
+
+
+    /**
+     * Keep the bitmaps evicted from the strong cache as soft references. The victim tier takes
+     * over the reference of the cache, so those bitmaps are not handed to the pool: the victim
+     * tier and the pool are alternative ways of making use of evicted bitmaps.
+     * @param enabled
+     */
+    public synchronized void setVictimTierEnabled(boolean enabled){
+    	if (enabled && mVictims == null) {
+    		mVictims = new HashMap<String, VictimReference>();
+    	}
+    	else if (!enabled && mVictims != null) {
+    		clearVictims();
+    		mVictims = null;
+    	}
+    }
+
+
+    public synchronized boolean isVictimTierEnabled(){
+    	return mVictims != null;
+    }
+
+
+    /**
+     * @return number of lookups served by the strong cache
+     */
+    public synchronized int getHitCount(){
+    	return mHitCount;
+    }
+
+    /**
+     * @return number of lookups served by the soft reference victim tier
+     */
+    public synchronized int getVictimHitCount(){
+    	return mVictimHitCount;
+    }
+
+    public synchronized int getMissCount(){
+    	return mMissCount;
+    }
+
+
+    /**
+     * Called once a bitmap has been evicted to make room for others, moves it to the victim
+     * tier if enabled.
+     * @param key
+     * @param handle
+     */
+    protected void entryEvicted(String key, BitmapHandle handle){
+    	if (mVictims != null) {
+    		purgeVictims();
+    		VictimReference previous = mVictims.put(key, new VictimReference(key, handle, mVictimQueue));
+    		if (previous != null && previous.get() != null) {
+    			entryRemoved(key, previous.get());
+    		}
+    	}
+    	else {
+    		entryRemoved(key, handle);
+    	}
+    }
+
+
+    /**
+     * Drop the victim tier entries whose bitmap has been garbage collected.
+     */
+    private void purgeVictims() {
+    	VictimReference ref;
+    	while ((ref = (VictimReference) mVictimQueue.poll()) != null) {
+    		if (mVictims != null && mVictims.get(ref.key) == ref) {
+    			mVictims.remove(ref.key);
+    		}
+    	}
+    }
+
+
+    private void clearVictims() {
+    	for (Map.Entry<String, VictimReference> e : mVictims.entrySet()) {
+    		BitmapHandle handle = e.getValue().get();
+    		if (handle != null) {
+    			entryRemoved(e.getKey(), handle);
+    		}
+    	}
+    	mVictims.clear();
+    	purgeVictims();
+    }
+
+
+    /**
+     * Called once a bitmap has been evicted or invalidated from the cache, drops the
+     * reference held by the cache.
+     * @param key
+     * @param handle
+     */
+    protected void entryRemoved(String key, BitmapHandle handle){
+    	handle.release();
+    }
+
+
+    /**
+     * Create the handle of a new entry, holding the reference of the cache.
+     */
+    protected BitmapHandle newHandle(Bitmap data){
+    	return new BitmapHandle(data, mRecycler);
+    }
+
 
     /**
-     * max number of resource this cache contains
-     * @param size
+     * Set the byte budget, evicting least recently used entries if the cache
+     * is already above it.
+     * @param maxBytes
      */
-    public MemoryBitmapCache (int size) {
-        this.mMaxSize = size;
+    public synchronized void setMaxSize(int maxBytes){
+    	mMaxSize = maxBytes;
+    	trimToSize(mMaxSize);
     }
-    
-    public void setMaxSize(int maxSize){
-    	mMaxSize = maxSize;
-    } 
-    
-    public int getMaxSize(){
+
+    public synchronized int getMaxSize(){
     	return mMaxSize;
-    } 
-    
+    }
+
+    /**
+     * Release memory in answer to ComponentCallbacks2.onTrimMemory(), evicting least recently
+     * used entries until the cache holds the part of its budget allowed at that level. The victim
+     * tier is dropped as soon as memory gets tight.
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* levels
+     */
+    public synchronized void trim(int level){
+    	float ratio = trimRatio(level);
+    	if (ratio >= 1f) {
+    		return;
+    	}
+    	if (mVictims != null) {
+    		clearVictims();
+    	}
+    	trimToSize((int) (getMaxSize() * ratio));
+    	if (mVictims != null) {
+    		// trimmed entries must actually be released, not moved to the victim tier
+    		clearVictims();
+    	}
+    	if(DEBUG) Log.v(TAG, "[trim] level " + level + " size : " + getSize() + "/" + getMaxSize());
+    }
+
+
+    /**
+     * Part of their budget memory caches may keep at a given trim level: the more the system
+     * needs memory, the less is kept, down to nothing once the process is about to be killed.
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* levels
+     */
+    static float trimRatio(int level){
+    	if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+    		return 0f;
+    	} else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+    		return 0.25f;
+    	} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+    		// the app went to the background
+    		return 0.5f;
+    	} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+    		return 0.25f;
+    	} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+    		return 0.5f;
+    	} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+    		return 0.75f;
+    	}
+    	return 1f;
+    }
+
+
+    /**
+     * @return number of bytes currently held by the cached bitmaps
+     */
+    public synchronized int getSize(){
+    	return mSize;
+    }
+
     @Override
     public synchronized boolean exists(String key){
-       return mMap.get(key) != null;
+       return mMap.containsKey(key) || mWindow.containsKey(key);
     }
 
-    
+
     @Override
     public synchronized void invalidate(String key){
-//        SoftReference<CacheEntry> entry = mMap.get(key);
-        CacheEntry entry = mMap.get(key);
-//        if(entry.get() != null && !entry.isEnqueued()){
-        	// CacheEntry found in soft cache
-//        	CacheEntry e = entry.get();
-//            Bitmap data = e.data;
-//          data.recycle(); // we are only relying on GC to reclaim the memory
-//        }
-        mMap.remove(key);
+        CacheEntry entry = mMap.remove(key);
+        if (entry == null) {
+            entry = mWindow.remove(key);
+            if (entry != null) {
+                mWindowSize -= entry.size;
+            }
+        }
+        if (entry != null) {
+            mSize -= entry.size;
+            entryRemoved(key, entry.handle);
+        }
+        if (mVictims != null) {
+            VictimReference ref = mVictims.remove(key);
+            if (ref != null && ref.get() != null) {
+                entryRemoved(key, ref.get());
+            }
+        }
         if(DEBUG) Log.v(TAG,"[invalidate]" + key + " is invalidated from the cache");
     }
 
-    
+
     @Override
     public synchronized void clear(){
-         for ( String key : mMap.keySet()) {
-             invalidate(key);
-         }
+        for (Map.Entry<String, CacheEntry> e : mMap.entrySet()) {
+            entryRemoved(e.getKey(), e.getValue().handle);
+        }
+        for (Map.Entry<String, CacheEntry> e : mWindow.entrySet()) {
+            entryRemoved(e.getKey(), e.getValue().handle);
+        }
+        mMap.clear();
+        mWindow.clear();
+        mSize = 0;
+        mWindowSize = 0;
+        if (mVictims != null) {
+            clearVictims();
+        }
     }
 
-    
+
     /**
-     * If the cache storage is full, return an item to be removed. 
-     * Will remove garbage collected items if some has been found while looking for eldest entry.
-     * Default strategy:  oldest out: O(n)
-     * 
+     * If the cache storage is full, return an item to be removed.
+     * Default strategy: least recently used out, O(1)
+     *
      * @return item key
      */
     protected synchronized String findItemToInvalidate() {
-//        Map.Entry<String, SoftReference<CacheEntry>> out = null;
-        Map.Entry<String, CacheEntry> out = null;
-//        for(Map.Entry<String, SoftReference<CacheEntry>> e : mMap.entrySet()){
-        for(Map.Entry<String, CacheEntry> e : mMap.entrySet()){
-
-//          	if( e.getValue().get() == null ||  e.getValue().isEnqueued()){
-//        		//item has been garbage collected
-//        		invalidate(e.getKey());
-//        		continue;
-//        	}
-          	
-//        	CacheEntry candidate = e.getValue().get();
-        	CacheEntry candidate = e.getValue();
-//            if( out == null || (out.getValue().get()!=null && candidate.timestamp < out.getValue().get().timestamp) ) {
-            if( out == null || (out.getValue()!=null && candidate.timestamp < out.getValue().timestamp) ) {
-                out = e;
-            }
+        Iterator<String> it = mMap.keySet().iterator();
+        if (it.hasNext()) {
+            return it.next();
+        }
+        it = mWindow.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+
+    /**
+     * Evict least recently used entries until the cache holds at most maxBytes.
+     * The main region is emptied before the admission window.
+     * @param maxBytes
+     */
+    protected synchronized void trimToSize(int maxBytes) {
+        Iterator<Map.Entry<String, CacheEntry>> it = mMap.entrySet().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            Map.Entry<String, CacheEntry> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue().size;
+            entryEvicted(eldest.getKey(), eldest.getValue().handle);
+
+            if(DEBUG)
+            	Log.v(TAG, "[trimToSize] evicted : " + eldest.getKey() + " size : " + mSize + "/" + mMaxSize);
+        }
+
+        it = mWindow.entrySet().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            Map.Entry<String, CacheEntry> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue().size;
+            mWindowSize -= eldest.getValue().size;
+            entryEvicted(eldest.getKey(), eldest.getValue().handle);
         }
-        return (out!=null)?out.getKey():null;
     }
 
-    
+
     @Override
     public synchronized Bitmap loadData(String key) {
-        if(!exists(key)) {
-            return null;
+        CacheEntry res = lookup(key);
+        return (res != null) ? res.handle.getBitmap() : null;
+    }
+
+
+    /**
+     * Retrieve the bitmap with a reference on it, to be released once it is no longer displayed.
+     * @param key
+     * @return null means cache miss
+     */
+    public synchronized BitmapHandle loadHandle(String key) {
+        CacheEntry res = lookup(key);
+        return (res != null && res.handle.acquire()) ? res.handle : null;
+    }
+
+
+    private CacheEntry lookup(String key) {
+        if (mPolicy != null) {
+            mPolicy.recordAccess(key);
         }
-//        SoftReference<CacheEntry> softRef =  mMap.get(key);
-//        CacheEntry res = softRef.get();
         CacheEntry res = mMap.get(key);
-//        if(softRef.get() == null || softRef.isEnqueued()){
         if(res == null){
-        	// Soft reference has been Garbage Collected
-        	invalidate(key);
+        	res = mWindow.get(key);
+        }
+        if(res == null){
+        	res = promoteVictim(key);
+        }
+        else {
+        	mHitCount++;
+        }
+        if(res == null){
+        	mMissCount++;
         	return null;
-        }else{
-        	// CacheEntry found in soft cache
-       	 	res.nUsed++;
-            res.timestamp = System.currentTimeMillis();
-            return res.data;
         }
-       
+        res.nUsed++;
+        res.timestamp = System.currentTimeMillis();
+        return res;
     }
 
 
-    @Override
-    public synchronized void storeData(String key, Object data) {
-        if(this.exists(key)) {
-            return;
+    /**
+     * Move a bitmap back from the victim tier to the strong cache.
+     * @return null if not found in the victim tier
+     */
+    private CacheEntry promoteVictim(String key) {
+        if (mVictims == null) {
+            return null;
         }
+        purgeVictims();
+        VictimReference ref = mVictims.remove(key);
+        BitmapHandle handle = (ref != null) ? ref.get() : null;
+        if (handle == null) {
+            return null;
+        }
+        mVictimHitCount++;
+        if(DEBUG) Log.v(TAG, "[promoteVictim] " + key + " found in victim tier");
+
         CacheEntry res = new CacheEntry();
+        res.handle = handle;
+        res.size = sizeOf(handle.getBitmap());
+        insert(key, res);
+        return res;
+    }
+
+
+    @Override
+    public void storeData(String key, Object data) {
+        BitmapHandle handle = storeHandle(key, (Bitmap)data);
+        if (handle != null) {
+            handle.release();
+        }
+    }
+
+
+    /**
+     * Store a bitmap and take a reference on it, to be released once it is no longer displayed.
+     * If the key is already cached, a reference on the cached bitmap is returned instead.
+     * @param key
+     * @param data
+     * @return null if the bitmap is too large to be cached
+     */
+    public synchronized BitmapHandle storeHandle(String key, Bitmap data) {
+        CacheEntry res = mMap.get(key);
+        if(res == null){
+        	res = mWindow.get(key);
+        }
+        if(res == null){
+        	res = promoteVictim(key);
+        }
+        if(res != null) {
+            return res.handle.acquire() ? res.handle : null;
+        }
+
+        res = new CacheEntry();
         res.nUsed = 1;
         res.timestamp = System.currentTimeMillis();
-        res.data = (Bitmap)data;
-        
-        //if the number exceeds, move an item out 
-        //to prevent the storage from increasing indefinitely.
-        
+        res.handle = newHandle(data);
+        res.size = sizeOf(data);
+
+        if (res.size > mMaxSize) {
+            // would flush the whole cache for a single entry
+            if(DEBUG) Log.v(TAG, "[storeHandle] " + key + " too large to be cached : " + res.size);
+            return null;
+        }
+        // taken before any eviction, so the caller's reference survives an immediate eviction
+        res.handle.acquire();
+        insert(key, res);
+
         if(DEBUG)
-        	Log.v(TAG, "[storeData] maxsize:" + mMaxSize + " current size:" + mMap.size());
-        
-        if(mMap.size() >= mMaxSize) {
-            String outkey = this.findItemToInvalidate();
-            
-            if(DEBUG)
-            	Log.v(TAG, "[storeData] size : " + mMap.size() + " outkey : " + outkey);
-            
-            this.invalidate(outkey);
-        }
-        
-        
-        
-//        mMap.put(key, new SoftReference<CacheEntry>(res));
-        mMap.put(key, res);
+        	Log.v(TAG, "[storeHandle] maxsize:" + mMaxSize + " current size:" + mSize);
+        return res.handle;
+    }
+
+
+    private void insert(String key, CacheEntry res) {
+        // an entry replaced under the same key no longer counts against the budget
+        CacheEntry previous = mMap.remove(key);
+        if (previous == null) {
+            previous = mWindow.remove(key);
+            if (previous != null) {
+                mWindowSize -= previous.size;
+            }
+        }
+        if (previous != null) {
+            mSize -= previous.size;
+            entryRemoved(key, previous.handle);
+        }
+
+        mSize += res.size;
+        if (mPolicy == null) {
+            mMap.put(key, res);
+
+            //if the budget exceeds, move items out
+            //to prevent the storage from increasing indefinitely.
+            trimToSize(mMaxSize);
+        }
+        else {
+            mWindow.put(key, res);
+            mWindowSize += res.size;
+            drainWindow();
+        }
+    }
+
+
+    /**
+     * Move the entries overflowing the admission window into the main region, as long as the
+     * admission policy prefers them over the main region's victims.
+     */
+    private void drainWindow() {
+        int windowMax = (int) (mMaxSize * mWindowFraction);
+        int mainMax = mMaxSize - windowMax;
+        List<String> victims = new ArrayList<String>();
+
+        Iterator<Map.Entry<String, CacheEntry>> it = mWindow.entrySet().iterator();
+        while (mWindowSize > windowMax && it.hasNext()) {
+            Map.Entry<String, CacheEntry> candidate = it.next();
+            CacheEntry c = candidate.getValue();
+            it.remove();
+            mWindowSize -= c.size;
+
+            // collect as many main region victims as needed to make room for the candidate
+            victims.clear();
+            int mainSize = mSize - mWindowSize - c.size;
+            boolean admitted = true;
+            Iterator<Map.Entry<String, CacheEntry>> mainIt = mMap.entrySet().iterator();
+            while (mainSize + c.size > mainMax && mainIt.hasNext()) {
+                Map.Entry<String, CacheEntry> victim = mainIt.next();
+                if (!mPolicy.admit(candidate.getKey(), victim.getKey())) {
+                    admitted = false;
+                    break;
+                }
+                victims.add(victim.getKey());
+                mainSize -= victim.getValue().size;
+            }
+            admitted = admitted && mainSize + c.size <= mainMax;
+
+            if (admitted) {
+                for (String v : victims) {
+                    CacheEntry victim = mMap.remove(v);
+                    mSize -= victim.size;
+                    entryEvicted(v, victim.handle);
+                }
+                mMap.put(candidate.getKey(), c);
+            }
+            else {
+                // only the cache reference is dropped, a candidate still on screen is freed
+                // once its other holders release it
+                mSize -= c.size;
+                entryEvicted(candidate.getKey(), c.handle);
+                if(DEBUG) Log.v(TAG, "[drainWindow] rejected : " + candidate.getKey());
+            }
+        }
     }
 
 }
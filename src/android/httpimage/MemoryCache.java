@@ -0,0 +1,83 @@
+package android.httpimage;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Byte-bounded in-memory cache of decoded bitmaps handing out reference counted
+ * {@link BitmapHandle}s, as used by HttpImageManager.
+ * <p>
+ * Implemented by {@link MemoryBitmapCache}, which supports admission policies and a victim tier,
+ * and by {@link StripedMemoryBitmapCache}, which trades them for lock-free lookups.
+ *
+ * @author abezzarg@gmail.com
+ */
+public interface MemoryCache extends BitmapCache {
+
+    /**
+     * Retrieve the bitmap with a reference on it, to be released once it is no longer displayed.
+     * @param key
+     * @return null means cache miss
+     */
+    public BitmapHandle loadHandle(String key);
+
+
+    /**
+     * Store a bitmap and take a reference on it, to be released once it is no longer displayed.
+     * If the key is already cached, a reference on the cached bitmap is returned instead.
+     * @param key
+     * @param data
+     * @return null if the bitmap is too large to be cached
+     */
+    public BitmapHandle storeHandle(String key, Bitmap data);
+
+
+    /**
+     * Set the byte budget, evicting entries if the cache is already above it.
+     * @param maxBytes
+     */
+    public void setMaxSize(int maxBytes);
+
+
+    public int getMaxSize();
+
+
+    /**
+     * @return number of bytes currently held by the cached bitmaps
+     */
+    public int getSize();
+
+
+    /**
+     * Release memory in answer to ComponentCallbacks2.onTrimMemory().
+     * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* levels
+     */
+    public void trim(int level);
+
+
+    /**
+     * Pool receiving the bitmaps dropped by this cache.
+     * @param pool null to let the GC reclaim them
+     */
+    public void setBitmapPool(BitmapPool pool);
+
+
+    public BitmapPool getBitmapPool();
+
+
+    /**
+     * Recycle the bitmaps as soon as they are evicted and no longer referenced, when no pool
+     * takes them. Only safe if every holder of a bitmap from this cache holds a BitmapHandle.
+     * @param recycle
+     */
+    public void setRecycleOnRelease(boolean recycle);
+
+
+    /**
+     * @return number of lookups served by the cache
+     */
+    public int getHitCount();
+
+
+    public int getMissCount();
+}
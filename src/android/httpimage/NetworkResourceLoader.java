@@ -1,100 +1,91 @@
 package android.httpimage;
 
 import java.io.IOException;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.scheme.SocketFactory;
-import org.apache.http.conn.ssl.SSLSocketFactory;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.HTTP;
 
 import android.net.Uri;
 import android.util.Log;
 
 
 /**
- * resource loader using apache HTTP client. support HTTP and HTTPS request.
- * 
+ * resource loader issuing HTTP and HTTPS request through a {@link Transport}, the apache HTTP
+ * client unless another one is set.
+ *
  * @author zonghai@gmail.com
  */
 public class NetworkResourceLoader {
     public static final String TAG = "NetworkResourceLoader";
     public static final boolean DEBUG = false;
 
-    private HttpClient mHttpClient = createHttpClient();
+    private volatile Transport mTransport;
+
+
+    public NetworkResourceLoader() {
+        this(new ApacheTransport());
+    }
+
+
+    public NetworkResourceLoader(Transport transport) {
+        mTransport = transport;
+    }
+
+
+    /**
+     * Set the transport of the next requests, e.g. a {@link UrlConnectionTransport} or a
+     * {@link FakeTransport}.
+     * @param transport
+     */
+    public void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
 
-    
     /**
-     * Gets the input stream from a response entity. If the entity is gzipped then this will get a
-     * stream over the uncompressed data.
+     * Request a resource. The body of the response may be gzipped, as told by its
+     * Content-Encoding header.
      *
-     * @param entity the entity whose content should be read
-     * @return the input stream to read from
+     * @return the response, to be closed once read
      * @throws IOException
      */
-    public HttpResponse load (Uri uri) throws IOException{
+    public Transport.Response load (Uri uri) throws IOException{
+        return load(uri, null, null);
+    }
+
+
+    /**
+     * Request a resource only if it changed since it was cached. The server answers
+     * 304 Not Modified, without a body, if it did not.
+     * @param ifNoneMatch ETag of the cached copy, null if none
+     * @param ifModifiedSince Last-Modified date of the cached copy, null if none
+     */
+    public Transport.Response load (Uri uri, String ifNoneMatch, String ifModifiedSince) throws IOException{
         if (DEBUG) Log.v(TAG, "[load] Requesting: " + uri);
-        HttpGet httpGet = new HttpGet(uri.toString());
-        httpGet.addHeader("Accept-Encoding", "gzip");
-        
-        return mHttpClient.execute(httpGet);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept-Encoding", "gzip");
+        if (ifNoneMatch != null)
+            headers.put("If-None-Match", ifNoneMatch);
+        if (ifModifiedSince != null)
+            headers.put("If-Modified-Since", ifModifiedSince);
+
+        return mTransport.execute(uri, headers);
 
     }
 
-    
+
     /**
-     * Create a thread-safe client. This client does not do redirecting, to allow us to capture
-     * correct "error" codes.
-     *
-     * @return HttpClient
+     * @deprecated use {@link ApacheTransport#createHttpClient()}
      */
+    @Deprecated
     public final DefaultHttpClient createHttpClient() {
-        HttpParams params = new BasicHttpParams();
-        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);  
-        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);  
-        HttpProtocolParams.setUseExpectContinue(params, true);  
-        // Turn off stale checking. Our connections break all the time anyway,
-        // and it's not worth it to pay the penalty of checking every time.
-        HttpConnectionParams.setStaleCheckingEnabled(params, false);
-
-        // Default connection and socket timeout of 30 seconds. Tweak to taste.
-        HttpConnectionParams.setConnectionTimeout(params, 10*1000);
-        HttpConnectionParams.setSoTimeout(params, 20*1000);
-        HttpConnectionParams.setSocketBufferSize(params, 8192);
-        
-        ConnManagerParams.setTimeout(params, 5 * 1000);
-        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(50));
-        ConnManagerParams.setMaxTotalConnections(params, 200);
-        
-        // Sets up the http part of the service.
-        final SchemeRegistry supportedSchemes = new SchemeRegistry();
-
-        // Register the "http" protocol scheme, it is required
-        // by the default operator to look up socket factories.
-        final SocketFactory sf = PlainSocketFactory.getSocketFactory();
-        supportedSchemes.register(new Scheme("http", sf, 80));
-        supportedSchemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));  
-        final ThreadSafeClientConnManager ccm = new ThreadSafeClientConnManager(params,
-                supportedSchemes);
-        
-        DefaultHttpClient httpClient = new DefaultHttpClient(ccm, params);
-        
-        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(3, true));
-        
-        return httpClient;
+        return ApacheTransport.createHttpClient();
     }
 
 }
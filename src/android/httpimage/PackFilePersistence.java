@@ -0,0 +1,586 @@
+package android.httpimage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Persistent storage appending the images into a few large segment files, instead of one file
+ * per image.
+ * <p>
+ * Each record is a small header, the key and the encoded image. An in-memory index maps every key
+ * to the segment, offset and length of its latest record, so a hit is a lookup in the index and a
+ * copy out of the segment: no open(), stat() nor close(). Sealed segments are mapped in memory once,
+ * the active one is read through its open channel. The index is rebuilt at startup by walking the
+ * record headers of the segments.
+ * <p>
+ * Segments are only appended to. Invalidating or overwriting an entry leaves a dead record behind,
+ * the MaintenanceScheduler copies the live records of mostly dead segments to the end of the log
+ * and deletes them. Once the segments exceed the byte budget the oldest one is dropped as a whole.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class PackFilePersistence extends PersistedBitmapCache {
+
+    private static final String TAG = PackFilePersistence.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    /** a sealed segment with less than this fraction of live bytes gets compacted */
+    private static final float COMPACTION_LIVE_RATIO = 0.5f;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final int RECORD_MAGIC = 0x48494d47;
+    // magic, key length, data length
+    private static final int HEADER_SIZE = 4 + 2 + 4;
+    private static final int TOMBSTONE = -1;
+
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        RandomAccessFile raf;
+        MappedByteBuffer map;
+        int size;
+        int liveBytes;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+
+    private static final class Location {
+        final Segment segment;
+        // offset of the record header, the data follows the key
+        final int offset;
+        final int dataOffset;
+        final int length;
+
+        Location(Segment segment, int offset, int dataOffset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.dataOffset = dataOffset;
+            this.length = length;
+        }
+    }
+
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private long mMaxSize = DEFAULT_MAX_SIZE;
+    private final HashMap<String, Location> mIndex = new HashMap<String, Location>();
+    // oldest first, the last one is appended to
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private boolean mOpened;
+    // segment being compacted and offset of its next record
+    private Segment mCompactionVictim;
+    private int mCompactionOffset;
+    private final MaintenanceScheduler.Task mCompactor = new MaintenanceScheduler.Task() {
+        @Override
+        public long runSlice(long maxBytes) {
+            return compactSlice(maxBytes);
+        }
+    };
+
+
+    public PackFilePersistence(String baseDir) {
+        this(baseDir, DEFAULT_SEGMENT_SIZE);
+    }
+
+
+    /**
+     * @param baseDir directory holding the segment files
+     * @param segmentSize size above which a segment is sealed and a new one started
+     */
+    public PackFilePersistence(String baseDir, int segmentSize) {
+        mDir = new File(baseDir);
+        mSegmentSize = segmentSize;
+    }
+
+
+    /**
+     * Set the max number of bytes of segments kept on disk, dropping the oldest ones if needed.
+     * @param maxBytes
+     */
+    public synchronized void setMaxSize(long maxBytes) {
+        mMaxSize = maxBytes;
+        ensureOpen();
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return number of bytes of segments on disk, dead records included
+     */
+    public synchronized long getSize() {
+        ensureOpen();
+        long size = 0;
+        for (Segment s : mSegments) {
+            size += s.size;
+        }
+        return size;
+    }
+
+    public synchronized int getSegmentCount() {
+        ensureOpen();
+        return mSegments.size();
+    }
+
+
+    @Override
+    public synchronized boolean exists(String key) {
+        ensureOpen();
+        return mIndex.containsKey(key);
+    }
+
+
+    @Override
+    public synchronized Iterable<String> keys() {
+        ensureOpen();
+        return new ArrayList<String>(mIndex.keySet());
+    }
+
+
+    @Override
+    public synchronized void invalidate(String key) {
+        ensureOpen();
+        Location loc = mIndex.remove(key);
+        if (loc == null) {
+            return;
+        }
+        loc.segment.liveBytes -= loc.length;
+        try {
+            append(key, null);
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "[invalidate] error writing tombstone", e);
+        }
+        scheduleCompactionIfNeeded();
+    }
+
+
+    @Override
+    public synchronized void clear() {
+        for (Segment s : mSegments) {
+            close(s);
+            s.file.delete();
+        }
+        mSegments.clear();
+        mIndex.clear();
+        // nothing left to scan
+        mOpened = true;
+    }
+
+
+    @Override
+    public Bitmap loadData(String key) {
+        return loadData(key, 0, 0);
+    }
+
+
+    @Override
+    public Bitmap loadData(String key, int targetWidth, int targetHeight) {
+        // decoded through a pooled copy
+        ByteBuffer record = readRecord(key, true);
+        if (record == null) {
+            return null;
+        }
+        try {
+            return BitmapUtil.decodeByteArray(record.array(), record.limit(), getDecodingPixelConstraint(), targetWidth, targetHeight);
+        }
+        finally {
+            BitmapUtil.getByteArrayPool().put(record.array());
+        }
+    }
+
+
+    @Override
+    public byte[] loadBytes(String key) {
+        ByteBuffer record = readRecord(key, false);
+        return (record != null) ? record.array() : null;
+    }
+
+
+    @Override
+    ByteBuffer loadPooledBytes(String key) {
+        return readRecord(key, true);
+    }
+
+
+    /**
+     * Copy the data of key out of its segment. The active segment keeps growing, so it is read
+     * through its channel; sealed segments are mapped once and copied out of the mapping.
+     * @param pooled true to copy into an array taken from the ByteArrayPool, to be handed back,
+     *               false for an array of the exact length
+     * @return the array holding the data up to the limit, null if not stored
+     */
+    private ByteBuffer readRecord(String key, boolean pooled) {
+        ByteBuffer mapped;
+        Location loc;
+        byte[] bytes;
+        synchronized (this) {
+            ensureOpen();
+            loc = mIndex.get(key);
+            if (loc == null) {
+                return null;
+            }
+            bytes = pooled ? BitmapUtil.getByteArrayPool().get(loc.length) : new byte[loc.length];
+            try {
+                if (loc.segment.raf != null) {
+                    ByteBuffer record = ByteBuffer.wrap(bytes, 0, loc.length);
+                    FileChannel channel = loc.segment.raf.getChannel();
+                    while (record.hasRemaining()) {
+                        if (channel.read(record, loc.dataOffset + record.position()) < 0) {
+                            throw new IOException("truncated segment " + loc.segment.file);
+                        }
+                    }
+                    record.flip();
+                    return record;
+                }
+                mapped = map(loc.segment);
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.e(TAG, "[readRecord] can not read " + loc.segment.file, e);
+                if (pooled) {
+                    BitmapUtil.getByteArrayPool().put(bytes);
+                }
+                return null;
+            }
+        }
+        // records are never written again, and a mapping stays valid once its file is deleted
+        ByteBuffer record = mapped.duplicate();
+        record.position(loc.dataOffset);
+        record.get(bytes, 0, loc.length);
+        return ByteBuffer.wrap(bytes, 0, loc.length);
+    }
+
+
+    @Override
+    public synchronized void storeData(String key, Object data) {
+        byte[] bytes = (byte[]) data;
+        ensureOpen();
+        try {
+            Location previous = mIndex.get(key);
+            Location loc = append(key, bytes);
+            if (previous != null) {
+                previous.segment.liveBytes -= previous.length;
+            }
+            mIndex.put(key, loc);
+            loc.segment.liveBytes += loc.length;
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "[storeData] error storing bitmap", e);
+        }
+        trimToSize(mMaxSize);
+        scheduleCompactionIfNeeded();
+    }
+
+
+    /**
+     * Copy the live records of the sealed segments that are mostly dead to the end of the log, and
+     * delete those segments. Runs on the calling thread.
+     */
+    public void compact() {
+        // a record at a time, so readers are only held up for a copy
+        while (compactSlice(0) != MaintenanceScheduler.DONE) {
+        }
+    }
+
+
+    private synchronized Segment nextCompactionCandidate() {
+        ensureOpen();
+        for (int i = 0; i < mSegments.size() - 1; i++) {
+            Segment s = mSegments.get(i);
+            if (s.liveBytes < s.size * COMPACTION_LIVE_RATIO) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Move the live records of the segment being compacted until about maxBytes were copied,
+     * picking the next segment to compact if needed.
+     * @return number of bytes read and written, DONE if no segment needs compacting
+     */
+    private synchronized long compactSlice(long maxBytes) {
+        long used = 0;
+        do {
+            Segment victim = mCompactionVictim;
+            // dropped by trimToSize() meanwhile
+            if (victim == null || !mSegments.contains(victim)) {
+                victim = mCompactionVictim = nextCompactionCandidate();
+                mCompactionOffset = 0;
+                if (victim == null) {
+                    return (used > 0) ? used : MaintenanceScheduler.DONE;
+                }
+            }
+            if (mCompactionOffset >= victim.size) {
+                mSegments.remove(victim);
+                close(victim);
+                victim.file.delete();
+                mCompactionVictim = null;
+                if(DEBUG) Log.d(TAG, "[compactSlice] " + victim.file.getName() + " deleted");
+                used += MaintenanceScheduler.FILE_OP_COST;
+                continue;
+            }
+            try {
+                int next = moveRecord(victim, mCompactionOffset);
+                // read from the victim, then appended
+                used += 2 * (next - mCompactionOffset);
+                mCompactionOffset = next;
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.e(TAG, "[compactSlice] error reading " + victim.file, e);
+                mCompactionVictim = null;
+                return MaintenanceScheduler.DONE;
+            }
+        } while (used < maxBytes);
+        return used;
+    }
+
+
+    /**
+     * Append the record at offset to the active segment if it is still live.
+     * @return offset of the next record
+     */
+    private int moveRecord(Segment victim, int offset) throws IOException {
+        ByteBuffer buffer = map(victim).duplicate();
+        buffer.position(offset);
+        buffer.getInt();
+        int keyLength = buffer.getShort();
+        int length = buffer.getInt();
+        byte[] keyBytes = new byte[keyLength];
+        buffer.get(keyBytes);
+        String key = new String(keyBytes, "US-ASCII");
+        int dataOffset = offset + HEADER_SIZE + keyLength;
+
+        Location loc = mIndex.get(key);
+        if (length != TOMBSTONE && loc != null && loc.segment == victim && loc.offset == offset) {
+            byte[] data = new byte[length];
+            buffer.get(data);
+            Location moved = append(key, data);
+            victim.liveBytes -= length;
+            moved.segment.liveBytes += length;
+            mIndex.put(key, moved);
+        }
+        else if (length == TOMBSTONE && loc == null && mSegments.indexOf(victim) > 0) {
+            // an older segment may still hold the record the tombstone deletes
+            append(key, null);
+        }
+        return dataOffset + (length == TOMBSTONE ? 0 : length);
+    }
+
+
+    private void scheduleCompactionIfNeeded() {
+        if (nextCompactionCandidate() != null) {
+            MaintenanceScheduler.getDefault().schedule(mCompactor);
+        }
+    }
+
+
+    /**
+     * Drop the oldest segments until the log holds at most maxBytes.
+     */
+    private void trimToSize(long maxBytes) {
+        long size = 0;
+        for (Segment s : mSegments) {
+            size += s.size;
+        }
+        while (size > maxBytes && mSegments.size() > 1) {
+            Segment oldest = mSegments.remove(0);
+            size -= oldest.size;
+            Iterator<Location> it = mIndex.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().segment == oldest) {
+                    it.remove();
+                }
+            }
+            close(oldest);
+            oldest.file.delete();
+            if(DEBUG) Log.d(TAG, "[trimToSize] " + oldest.file.getName() + " dropped");
+        }
+    }
+
+
+    /**
+     * Append a record to the active segment, starting a new segment once it is full.
+     * @param data null for a tombstone
+     */
+    private Location append(String key, byte[] data) throws IOException {
+        Segment active = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (active == null || active.raf == null || active.size >= mSegmentSize) {
+            active = newSegment(active == null ? 0 : active.id + 1);
+        }
+        byte[] keyBytes = key.getBytes("US-ASCII");
+        int length = (data != null) ? data.length : TOMBSTONE;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length);
+        header.putInt(RECORD_MAGIC).putShort((short) keyBytes.length).putInt(length).put(keyBytes);
+
+        int offset = active.size;
+        active.raf.seek(offset);
+        active.raf.write(header.array());
+        if (data != null) {
+            active.raf.write(data);
+        }
+        active.size += header.capacity() + (data != null ? data.length : 0);
+        return new Location(active, offset, offset + header.capacity(), data != null ? data.length : 0);
+    }
+
+
+    private Segment newSegment(int id) throws IOException {
+        if (!mDir.exists()) {
+            mDir.mkdirs();
+        }
+        if (!mSegments.isEmpty()) {
+            // the sealed segment is only read from now on
+            Segment sealed = mSegments.get(mSegments.size() - 1);
+            close(sealed);
+        }
+        Segment s = new Segment(id, new File(mDir, SEGMENT_PREFIX + id));
+        s.raf = new RandomAccessFile(s.file, "rw");
+        s.raf.setLength(0);
+        mSegments.add(s);
+        return s;
+    }
+
+
+    /**
+     * @return the sealed segment mapped in memory, mapped once as it no longer grows
+     */
+    private ByteBuffer map(Segment s) throws IOException {
+        if (s.map == null) {
+            RandomAccessFile raf = new RandomAccessFile(s.file, "r");
+            try {
+                s.map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, s.size);
+            }
+            finally {
+                raf.close();
+            }
+        }
+        return s.map;
+    }
+
+
+    private static void close(Segment s) {
+        if (s.raf != null) {
+            try { s.raf.close(); } catch (IOException e) {}
+            s.raf = null;
+        }
+    }
+
+
+    /**
+     * Rebuild the index from the segments on first use.
+     */
+    private void ensureOpen() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+        File[] files = mDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().startsWith(SEGMENT_PREFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            try {
+                mSegments.add(new Segment(Integer.parseInt(f.getName().substring(SEGMENT_PREFIX.length())), f));
+            }
+            catch (NumberFormatException e) {
+                f.delete();
+            }
+        }
+        Collections.sort(mSegments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < mSegments.size(); i++) {
+            Segment s = mSegments.get(i);
+            try {
+                scan(s);
+                if (i == mSegments.size() - 1) {
+                    s.raf = new RandomAccessFile(s.file, "rw");
+                }
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.e(TAG, "[ensureOpen] error reading " + s.file, e);
+            }
+        }
+        if(DEBUG) Log.d(TAG, "[ensureOpen] " + mIndex.size() + " entries in " + mSegments.size() + " segments");
+    }
+
+
+    /**
+     * Replay the record headers of a segment into the index, cutting a record torn by a crash.
+     */
+    private void scan(Segment s) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(s.file, "rw");
+        try {
+            long fileLength = raf.length();
+            int offset = 0;
+            byte[] header = new byte[HEADER_SIZE];
+            while (offset + HEADER_SIZE <= fileLength) {
+                raf.seek(offset);
+                raf.readFully(header);
+                ByteBuffer h = ByteBuffer.wrap(header);
+                int magic = h.getInt();
+                int keyLength = h.getShort();
+                int length = h.getInt();
+                int dataOffset = offset + HEADER_SIZE + keyLength;
+                int end = dataOffset + (length == TOMBSTONE ? 0 : length);
+                if (magic != RECORD_MAGIC || keyLength <= 0 || length < TOMBSTONE || end > fileLength) {
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                raf.readFully(keyBytes);
+                String key = new String(keyBytes, "US-ASCII");
+
+                Location previous = (length == TOMBSTONE) ? mIndex.remove(key)
+                        : mIndex.put(key, new Location(s, offset, dataOffset, length));
+                if (previous != null) {
+                    previous.segment.liveBytes -= previous.length;
+                }
+                if (length != TOMBSTONE) {
+                    s.liveBytes += length;
+                }
+                offset = end;
+            }
+            if (offset < fileLength) {
+                if(DEBUG) Log.w(TAG, "[scan] " + s.file.getName() + " truncated at " + offset);
+                raf.setLength(offset);
+            }
+            s.size = offset;
+        }
+        finally {
+            raf.close();
+        }
+    }
+}
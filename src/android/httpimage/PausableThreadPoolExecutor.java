@@ -48,4 +48,20 @@ public class PausableThreadPoolExecutor extends ThreadPoolExecutor {
 			pauseLock.unlock();
 		}
 	}
+
+	public boolean isPaused() {
+		pauseLock.lock();
+		try {
+			return isPaused;
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if no task is running nor queued
+	 */
+	public boolean isIdle() {
+		return getActiveCount() == 0 && getQueue().isEmpty();
+	}
 }
@@ -1,5 +1,10 @@
 package android.httpimage;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
 import android.graphics.Bitmap;
 
 /**
@@ -21,5 +26,94 @@ abstract public class PersistedBitmapCache implements BitmapCache {
     public int getDecodingPixelConstraint(){
     	return mMaxNumOfPixelsConstraint;
     }
+    
+    /**
+     * Retrieve the bitmap decoded for display at the given size, return null means cache miss.
+     * Implementations decoding from bytes should override it to subsample while decoding.
+     * @param targetWidth 0 if unconstrained
+     * @param targetHeight 0 if unconstrained
+     */
+    public Bitmap loadData(String key, int targetWidth, int targetHeight){
+    	return BitmapUtil.scaleToCover(loadData(key), targetWidth, targetHeight, true);
+    }
+    
+    /**
+     * Retrieve the stored data as-is, without decoding it.
+     * @param key
+     * @return null if not found, or if the implementation can not provide the raw data
+     */
+    public byte[] loadBytes(String key){
+    	return null;
+    }
+    
+    /**
+     * Retrieve the stored data as-is into an array of the ByteArrayPool, for a caller decoding
+     * it right away and handing the array back. Implementations that can read straight into
+     * the pooled array override it, by default it holds a copy of {@link #loadBytes(String)}.
+     * @return the array holding the data up to the limit, null if not found
+     */
+    ByteBuffer loadPooledBytes(String key){
+    	byte[] bytes = loadBytes(key);
+    	if (bytes == null) {
+    		return null;
+    	}
+    	byte[] pooled = BitmapUtil.getByteArrayPool().get(bytes.length);
+    	System.arraycopy(bytes, 0, pooled, 0, bytes.length);
+    	return ByteBuffer.wrap(pooled, 0, bytes.length);
+    }
+    
+    /**
+     * Store several entries at once. Implementations that can write them together, e.g. in a
+     * single transaction, should override it.
+     * @param entries key -> encoded image
+     */
+    public void storeAll(Map<String, byte[]> entries){
+    	for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+    		storeData(e.getKey(), e.getValue());
+    	}
+    }
+    
+    /**
+     * Create a file to download an image into, that {@link #storeFile(String, File)} can take over
+     * without copying it.
+     * @param key key the image is to be stored under
+     * @return null if the implementation can not take over files
+     */
+    public File newTempFile(String key){
+    	return null;
+    }
+    
+    /**
+     * Delete a file obtained from {@link #newTempFile(String)} that is not to be stored.
+     * @param file
+     */
+    public void discardTempFile(File file){
+    	file.delete();
+    }
+    
+    /**
+     * Store the content of a file obtained from {@link #newTempFile(String)}. The file is moved or
+     * deleted.
+     * @param key
+     * @param file complete and synced to disk
+     */
+    public void storeFile(String key, File file){
+    	try {
+    		storeData(key, BitmapUtil.readFile(file));
+    	}
+    	catch (IOException e) {
+    		// nothing stored, as with any write error
+    	}
+    	finally {
+    		file.delete();
+    	}
+    }
+    
+    /**
+     * @return a snapshot of the stored keys, null if the implementation can not enumerate them
+     */
+    public Iterable<String> keys(){
+    	return null;
+    }
 
 }
@@ -0,0 +1,391 @@
+package android.httpimage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+
+/**
+ * Persistence decorator keeping the decoded pixels of small images, so that restoring a
+ * thumbnail is a single read and copy instead of a JPEG or PNG decode.
+ * <p>
+ * Whenever the wrapped persistence decodes a bitmap of at most {@link #setMaxPixels(int)}
+ * pixels, its RGB_565 or ARGB_8888 pixels are written behind a small header to a file of their
+ * own. The next load of the same key for the same target size reads that file into a buffer of
+ * the ByteArrayPool and copies the pixels into a bitmap taken from the BitmapUtil pool when one
+ * fits. A load for another target size decodes from the wrapped persistence again and replaces
+ * the pixels. Pixels decoded before the image was stored again or invalidated are dropped.
+ * <p>
+ * The pixel files are kept under their own byte budget, evicted in least recently used order.
+ * They are only valid on the device that wrote them.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class RawPixelPersistence extends PersistedBitmapCache {
+
+    private static final String TAG = RawPixelPersistence.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int DEFAULT_MAX_PIXELS = 256 * 256;
+    public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAGIC = 0x52415750;
+    // magic, width, height, config, target width, target height
+    private static final int HEADER_SIZE = 6 * 4;
+    private static final int CONFIG_RGB_565 = 0;
+    private static final int CONFIG_ARGB_8888 = 1;
+    private static final int GENERATION_STRIPES = 64;
+
+    private final PersistedBitmapCache mTarget;
+    private final FileSystemPersistence mPixels;
+    private volatile int mMaxPixels;
+    // bumped by every invalidate of the keys of a stripe, guards the stores of pixels
+    private final int[] mGenerations = new int[GENERATION_STRIPES];
+
+
+    public RawPixelPersistence(PersistedBitmapCache target, String pixelDir) {
+        this(target, pixelDir, DEFAULT_MAX_PIXELS);
+    }
+
+
+    /**
+     * @param target persistence holding the encoded images
+     * @param pixelDir directory of the pixel files, not shared with another persistence
+     * @param maxPixels images larger than this number of pixels are not kept as pixels
+     */
+    public RawPixelPersistence(PersistedBitmapCache target, String pixelDir, int maxPixels) {
+        mTarget = target;
+        mPixels = new FileSystemPersistence(pixelDir);
+        mPixels.setMaxSize(DEFAULT_MAX_SIZE);
+        mMaxPixels = maxPixels;
+    }
+
+
+    public PersistedBitmapCache getTarget() {
+        return mTarget;
+    }
+
+
+    /**
+     * Set the number of pixels of the largest image kept as pixels. Already kept larger images
+     * stay until evicted.
+     * @param maxPixels
+     */
+    public void setMaxPixels(int maxPixels) {
+        mMaxPixels = maxPixels;
+    }
+
+
+    public int getMaxPixels() {
+        return mMaxPixels;
+    }
+
+
+    /**
+     * Set the max number of bytes of pixel files kept on disk.
+     * @param maxBytes
+     */
+    public void setMaxSize(long maxBytes) {
+        mPixels.setMaxSize(maxBytes);
+    }
+
+
+    /**
+     * @return number of bytes of pixel files currently on disk
+     */
+    public long getSize() {
+        return mPixels.getSize();
+    }
+
+
+    @Override
+    public void setDecodingPixelConstraint(int maxNumOfPixels) {
+        super.setDecodingPixelConstraint(maxNumOfPixels);
+        mTarget.setDecodingPixelConstraint(maxNumOfPixels);
+    }
+
+
+    @Override
+    public boolean exists(String key) {
+        return mTarget.exists(key);
+    }
+
+
+    @Override
+    public Bitmap loadData(String key) {
+        return loadData(key, 0, 0);
+    }
+
+
+    @Override
+    public Bitmap loadData(String key, int targetWidth, int targetHeight) {
+        Bitmap bitmap = loadPixels(key, targetWidth, targetHeight);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        int generation = generationOf(key);
+        bitmap = mTarget.loadData(key, targetWidth, targetHeight);
+        if (bitmap != null && bitmap.getWidth() * bitmap.getHeight() <= mMaxPixels) {
+            storePixels(key, generation, bitmap, targetWidth, targetHeight);
+        }
+        return bitmap;
+    }
+
+
+    @Override
+    public byte[] loadBytes(String key) {
+        return mTarget.loadBytes(key);
+    }
+
+
+    @Override
+    ByteBuffer loadPooledBytes(String key) {
+        return mTarget.loadPooledBytes(key);
+    }
+
+
+    @Override
+    public void storeData(String key, Object data) {
+        // the pixels of the former image must not outlive it
+        invalidatePixels(key);
+        mTarget.storeData(key, data);
+    }
+
+
+    @Override
+    public void storeAll(Map<String, byte[]> entries) {
+        for (String key : entries.keySet()) {
+            invalidatePixels(key);
+        }
+        mTarget.storeAll(entries);
+    }
+
+
+    @Override
+    public File newTempFile(String key) {
+        return mTarget.newTempFile(key);
+    }
+
+
+    @Override
+    public void discardTempFile(File file) {
+        mTarget.discardTempFile(file);
+    }
+
+
+    @Override
+    public void storeFile(String key, File file) {
+        invalidatePixels(key);
+        mTarget.storeFile(key, file);
+    }
+
+
+    @Override
+    public void invalidate(String key) {
+        invalidatePixels(key);
+        mTarget.invalidate(key);
+    }
+
+
+    @Override
+    public void clear() {
+        synchronized (mGenerations) {
+            for (int i = 0; i < GENERATION_STRIPES; i++) {
+                mGenerations[i]++;
+            }
+            mPixels.clear();
+        }
+        mTarget.clear();
+    }
+
+
+    @Override
+    public Iterable<String> keys() {
+        return mTarget.keys();
+    }
+
+
+    private static int stripeOf(String key) {
+        return key.hashCode() & (GENERATION_STRIPES - 1);
+    }
+
+
+    private int generationOf(String key) {
+        synchronized (mGenerations) {
+            return mGenerations[stripeOf(key)];
+        }
+    }
+
+
+    /**
+     * Delete the pixels of key, and drop those a load in progress is about to store.
+     */
+    private void invalidatePixels(String key) {
+        synchronized (mGenerations) {
+            mGenerations[stripeOf(key)]++;
+            mPixels.invalidate(key);
+        }
+    }
+
+
+    /**
+     * @return null if no pixels are kept for key at this target size
+     */
+    private Bitmap loadPixels(String key, int targetWidth, int targetHeight) {
+        File file = mPixels.openFile(key);
+        if (file == null) {
+            return null;
+        }
+        ByteArrayPool bytePool = BitmapUtil.getByteArrayPool();
+        byte[] buf = null;
+        FileInputStream in = null;
+        try {
+            // small enough a single read into a pooled buffer beats setting up a mapping
+            int length = (int) file.length();
+            buf = bytePool.get(length);
+            in = new FileInputStream(file);
+            int n = 0;
+            while (n < length) {
+                int read = in.read(buf, n, length - n);
+                if (read < 0) {
+                    break;
+                }
+                n += read;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(buf, 0, n);
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                mPixels.invalidate(key);
+                return null;
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            Bitmap.Config config = (buffer.getInt() == CONFIG_ARGB_8888) ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+            if (buffer.getInt() != targetWidth || buffer.getInt() != targetHeight) {
+                return null;
+            }
+
+            Bitmap bitmap = obtainBitmap(width, height, config);
+            if (buffer.remaining() < bitmap.getRowBytes() * height) {
+                BitmapPool pool = BitmapUtil.getBitmapPool();
+                if (pool != null) pool.put(bitmap);
+                mPixels.invalidate(key);
+                return null;
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+            if(DEBUG) Log.v(TAG, "[loadPixels] " + key + " " + width + "x" + height);
+            return bitmap;
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.w(TAG, "[loadPixels] can not read " + file, e);
+            mPixels.invalidate(key);
+            return null;
+        }
+        catch (OutOfMemoryError oom) {
+            if(DEBUG) Log.w(TAG, oom);
+            return null;
+        }
+        finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException e) {}
+            }
+            bytePool.put(buf);
+        }
+    }
+
+
+    /**
+     * @return a mutable bitmap of exactly width x height, reused from the pool when possible
+     */
+    private static Bitmap obtainBitmap(int width, int height, Bitmap.Config config) {
+        BitmapPool pool = BitmapUtil.getBitmapPool();
+        Bitmap bitmap = (pool != null) ? pool.get(width, height, config) : null;
+        if (bitmap != null && (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config)) {
+            // only from KitKat on, a larger pooled bitmap is handed out
+            bitmap = reconfigure(bitmap, width, height, config);
+        }
+        return (bitmap != null) ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static Bitmap reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        try {
+            bitmap.reconfigure(width, height, config);
+            return bitmap;
+        }
+        catch (IllegalArgumentException e) {
+            if(DEBUG) Log.w(TAG, "[reconfigure] could not reuse bitmap", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * @param generation generation of key before bitmap was decoded
+     */
+    private void storePixels(String key, int generation, Bitmap bitmap, int targetWidth, int targetHeight) {
+        int config;
+        if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            config = CONFIG_RGB_565;
+        }
+        else if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            config = CONFIG_ARGB_8888;
+        }
+        else {
+            return;
+        }
+        ByteArrayPool bytePool = BitmapUtil.getByteArrayPool();
+        int length = HEADER_SIZE + bitmap.getRowBytes() * bitmap.getHeight();
+        byte[] buf = null;
+        File tmp = null;
+        try {
+            buf = bytePool.get(length);
+            ByteBuffer buffer = ByteBuffer.wrap(buf, 0, length);
+            buffer.putInt(MAGIC);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(config);
+            buffer.putInt(targetWidth);
+            buffer.putInt(targetHeight);
+            bitmap.copyPixelsToBuffer(buffer);
+
+            tmp = mPixels.newTempFile(key);
+            if (tmp == null) {
+                return;
+            }
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(buf, 0, length);
+            }
+            finally {
+                out.close();
+            }
+            synchronized (mGenerations) {
+                if (mGenerations[stripeOf(key)] == generation) {
+                    mPixels.storeFile(key, tmp);
+                    tmp = null;
+                }
+            }
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.w(TAG, "[storePixels] can not write the pixels of " + key, e);
+        }
+        catch (OutOfMemoryError oom) {
+            if(DEBUG) Log.w(TAG, oom);
+        }
+        finally {
+            if (tmp != null) {
+                mPixels.discardTempFile(tmp);
+            }
+            bytePool.put(buf);
+        }
+    }
+}
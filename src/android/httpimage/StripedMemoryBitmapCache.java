@@ -0,0 +1,350 @@
+package android.httpimage;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Lock-striped alternative to MemoryBitmapCache.
+ * <p>
+ * Lookups go straight to a ConcurrentHashMap and never take a lock: a hit only flags the entry
+ * as referenced and bumps its counters. Writes and evictions are serialized per segment, the
+ * segment being chosen by the key hash, so the workers storing bitmaps do not contend with the
+ * UI thread nor with each other as long as they hit different segments.
+ * <p>
+ * Each segment owns an equal share of the byte budget and evicts with the CLOCK (second chance)
+ * approximation of LRU: an entry that was read since the hand last passed it is kept for
+ * another round.
+ * <p>
+ * Admission policies and the victim tier of MemoryBitmapCache require a global view of the
+ * entries, which this cache avoids by design, so it offers neither.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class StripedMemoryBitmapCache implements MemoryCache {
+
+    private static class CacheEntry {
+        final String key;
+        final BitmapHandle handle;
+        final int size;
+        final AtomicInteger nUsed = new AtomicInteger(1);
+        volatile long timestamp;
+        volatile boolean referenced;
+
+        CacheEntry(String key, BitmapHandle handle) {
+            this.key = key;
+            this.handle = handle;
+            this.size = MemoryBitmapCache.sizeOf(handle.getBitmap());
+            this.timestamp = System.currentTimeMillis();
+        }
+    }
+
+
+    private static final class Segment extends ReentrantLock {
+        final ArrayDeque<CacheEntry> clock = new ArrayDeque<CacheEntry>();
+        volatile int size;
+        volatile int maxSize;
+    }
+
+
+    private static final String TAG = StripedMemoryBitmapCache.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+
+    private final ConcurrentHashMap<String, CacheEntry> mMap;
+    private final Segment[] mSegments;
+    private final int mSegmentMask;
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final BitmapRecycler mRecycler = new BitmapRecycler();
+
+
+    public StripedMemoryBitmapCache (int maxBytes) {
+        this(maxBytes, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+
+    /**
+     * @param maxBytes max number of bytes the cached bitmaps may hold
+     * @param concurrencyLevel estimated number of concurrent writers, rounded up to a power of 2
+     */
+    public StripedMemoryBitmapCache (int maxBytes, int concurrencyLevel) {
+        int n = 1;
+        while (n < concurrencyLevel) {
+            n <<= 1;
+        }
+        mSegments = new Segment[n];
+        mSegmentMask = n - 1;
+        for (int i = 0; i < n; i++) {
+            mSegments[i] = new Segment();
+            mSegments[i].maxSize = maxBytes / n;
+        }
+        mMap = new ConcurrentHashMap<String, CacheEntry>(64, 0.75f, n);
+    }
+
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        // spread the bits, the low ones of String hashes are poorly distributed
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return mSegments[h & mSegmentMask];
+    }
+
+
+    @Override
+    public void setBitmapPool(BitmapPool pool) {
+        mRecycler.setBitmapPool(pool);
+    }
+
+
+    @Override
+    public BitmapPool getBitmapPool() {
+        return mRecycler.getBitmapPool();
+    }
+
+
+    @Override
+    public void setRecycleOnRelease(boolean recycle) {
+        mRecycler.setRecycleOnRelease(recycle);
+    }
+
+
+    @Override
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+
+    @Override
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+
+    @Override
+    public void setMaxSize(int maxBytes) {
+        int share = maxBytes / mSegments.length;
+        for (Segment s : mSegments) {
+            s.lock();
+            try {
+                s.maxSize = share;
+                evict(s);
+            } finally {
+                s.unlock();
+            }
+        }
+    }
+
+
+    @Override
+    public int getMaxSize() {
+        int max = 0;
+        for (Segment s : mSegments) {
+            max += s.maxSize;
+        }
+        return max;
+    }
+
+
+    /**
+     * @see MemoryBitmapCache#trim(int)
+     */
+    @Override
+    public void trim(int level) {
+        float ratio = MemoryBitmapCache.trimRatio(level);
+        if (ratio < 1f) {
+            trimToSize((int) (getMaxSize() * ratio));
+        }
+        if(DEBUG) Log.v(TAG, "[trim] level " + level + " size : " + getSize() + "/" + getMaxSize());
+    }
+
+
+    @Override
+    public int getSize() {
+        int size = 0;
+        for (Segment s : mSegments) {
+            size += s.size;
+        }
+        return size;
+    }
+
+
+    @Override
+    public boolean exists(String key) {
+        return mMap.containsKey(key);
+    }
+
+
+    @Override
+    public Bitmap loadData(String key) {
+        CacheEntry e = lookup(key);
+        return (e != null) ? e.handle.getBitmap() : null;
+    }
+
+
+    @Override
+    public BitmapHandle loadHandle(String key) {
+        CacheEntry e = lookup(key);
+        // the entry may have been evicted and released since the lookup
+        return (e != null && e.handle.acquire()) ? e.handle : null;
+    }
+
+
+    private CacheEntry lookup(String key) {
+        CacheEntry e = mMap.get(key);
+        if (e == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        e.referenced = true;
+        e.nUsed.incrementAndGet();
+        e.timestamp = System.currentTimeMillis();
+        return e;
+    }
+
+
+    @Override
+    public void storeData(String key, Object data) {
+        BitmapHandle handle = storeHandle(key, (Bitmap)data);
+        if (handle != null) {
+            handle.release();
+        }
+    }
+
+
+    @Override
+    public BitmapHandle storeHandle(String key, Bitmap data) {
+        Segment s = segmentFor(key);
+        if (MemoryBitmapCache.sizeOf(data) > s.maxSize) {
+            if(DEBUG) Log.v(TAG, "[storeHandle] " + key + " too large to be cached");
+            return null;
+        }
+
+        s.lock();
+        try {
+            CacheEntry existing = mMap.get(key);
+            if (existing != null) {
+                return existing.handle.acquire() ? existing.handle : null;
+            }
+            CacheEntry e = new CacheEntry(key, new BitmapHandle(data, mRecycler));
+            e.handle.acquire();
+            mMap.put(key, e);
+            s.clock.addLast(e);
+            s.size += e.size;
+            evict(s);
+            return e.handle;
+        } finally {
+            s.unlock();
+        }
+    }
+
+
+    @Override
+    public void invalidate(String key) {
+        Segment s = segmentFor(key);
+        s.lock();
+        try {
+            CacheEntry e = mMap.remove(key);
+            if (e != null) {
+                s.clock.remove(e);
+                s.size -= e.size;
+                e.handle.release();
+            }
+        } finally {
+            s.unlock();
+        }
+        if(DEBUG) Log.v(TAG,"[invalidate]" + key + " is invalidated from the cache");
+    }
+
+
+    @Override
+    public void clear() {
+        for (Segment s : mSegments) {
+            s.lock();
+            try {
+                for (CacheEntry e : s.clock) {
+                    mMap.remove(e.key, e);
+                    e.handle.release();
+                }
+                s.clock.clear();
+                s.size = 0;
+            } finally {
+                s.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * @return key of the entry next under the clock hand of the first non empty segment
+     */
+    protected String findItemToInvalidate() {
+        for (Segment s : mSegments) {
+            s.lock();
+            try {
+                CacheEntry e = s.clock.peekFirst();
+                if (e != null) {
+                    return e.key;
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Evict entries until the cache holds at most maxBytes, each segment its share.
+     * @param maxBytes
+     */
+    protected void trimToSize(int maxBytes) {
+        int share = maxBytes / mSegments.length;
+        for (Segment s : mSegments) {
+            s.lock();
+            try {
+                evict(s, share);
+            } finally {
+                s.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Run the clock hand until the segment fits its budget. Call with the segment lock held.
+     */
+    private void evict(Segment s) {
+        evict(s, s.maxSize);
+    }
+
+
+    private void evict(Segment s, int maxBytes) {
+        while (s.size > maxBytes) {
+            CacheEntry e = s.clock.pollFirst();
+            if (e == null) {
+                break;
+            }
+            if (e.referenced) {
+                // second chance, the flag is cleared so the hand terminates within two rounds
+                e.referenced = false;
+                s.clock.addLast(e);
+                continue;
+            }
+            mMap.remove(e.key, e);
+            s.size -= e.size;
+            e.handle.release();
+
+            if(DEBUG) Log.v(TAG, "[evict] evicted : " + e.key + " segment size : " + s.size + "/" + maxBytes);
+        }
+    }
+
+}
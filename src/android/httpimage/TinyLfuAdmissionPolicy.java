@@ -0,0 +1,48 @@
+package android.httpimage;
+
+
+/**
+ * TinyLFU admission: a candidate only replaces a victim if it has been requested more often
+ * recently. Combined with the admission window of MemoryBitmapCache it gives a W-TinyLFU cache,
+ * so a fast fling through a long list can not flush the images shown on every screen.
+ * <p>
+ * <pre>
+ *     MemoryBitmapCache cache = HttpImageManager.createDefaultMemoryCache();
+ *     cache.setAdmissionPolicy(new TinyLfuAdmissionPolicy(256));
+ * </pre>
+ *
+ * @author abezzarg@gmail.com
+ */
+public class TinyLfuAdmissionPolicy implements MemoryBitmapCache.AdmissionPolicy {
+
+    private final FrequencySketch mSketch;
+
+
+    /**
+     * @param expectedEntries rough number of distinct images the cache is expected to see
+     */
+    public TinyLfuAdmissionPolicy(int expectedEntries) {
+        mSketch = new FrequencySketch(expectedEntries);
+    }
+
+
+    @Override
+    public void recordAccess(String key) {
+        mSketch.increment(spread(key.hashCode()));
+    }
+
+
+    @Override
+    public boolean admit(String candidateKey, String victimKey) {
+        return mSketch.frequency(spread(candidateKey.hashCode()))
+                > mSketch.frequency(spread(victimKey.hashCode()));
+    }
+
+
+    private static int spread(int h) {
+        h ^= (h >>> 17);
+        h *= 0xed5ad4bb;
+        h ^= (h >>> 11);
+        return h;
+    }
+}
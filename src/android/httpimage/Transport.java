@@ -0,0 +1,56 @@
+package android.httpimage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import android.net.Uri;
+
+
+/**
+ * Carries the GET requests of a {@link NetworkResourceLoader}, so that the HTTP client can be
+ * swapped: {@link ApacheTransport} by default, {@link UrlConnectionTransport}, an adapter to
+ * another client, or {@link FakeTransport} to run without a network.
+ * <p>
+ * Implementations must be thread-safe, requests are issued from several worker threads.
+ *
+ * @author abezzarg@gmail.com
+ */
+public interface Transport {
+
+    /**
+     * Issue a GET request. Redirects may be followed or not, the status is returned as is.
+     * @param headers request headers, e.g. Accept-Encoding or If-None-Match
+     * @throws IOException if no response could be received
+     */
+    Response execute(Uri uri, Map<String, String> headers) throws IOException;
+
+
+    /**
+     * Response to a request, to be closed once read.
+     */
+    interface Response {
+
+        int getStatusCode();
+
+        /**
+         * @return value of the first header of that name, null if none
+         */
+        String getHeader(String name);
+
+        /**
+         * @return length of the body as sent, before any content decoding, -1 if unknown
+         */
+        long getContentLength();
+
+        /**
+         * @return the body as sent, still gzipped if so, null if the response has none
+         */
+        InputStream getContent() throws IOException;
+
+        /**
+         * Release the connection, skipping the part of the body not read.
+         */
+        void close();
+    }
+}
@@ -0,0 +1,119 @@
+package android.httpimage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import android.net.Uri;
+
+
+/**
+ * Transport over HttpURLConnection, the client Android recommends since Gingerbread, which pools
+ * its connections and is backed by OkHttp on recent releases. support HTTP and HTTPS request.
+ * <p>
+ * Gzip is left to the caller: setting Accept-Encoding turns off the transparent decompression of
+ * HttpURLConnection, so that the body comes as sent with its Content-Encoding.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class UrlConnectionTransport implements Transport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 20 * 1000;
+
+    private volatile int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int mReadTimeout = DEFAULT_READ_TIMEOUT;
+
+
+    /**
+     * @param connectTimeout milliseconds, 0 for none
+     * @param readTimeout milliseconds, 0 for none
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
+
+
+    @Override
+    public Response execute(Uri uri, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(uri.toString()).openConnection();
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        try {
+            // sends the request and reads the status line and headers
+            connection.getResponseCode();
+        }
+        catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        return new UrlConnectionResponse(connection);
+    }
+
+
+    private static class UrlConnectionResponse implements Response {
+
+        private final HttpURLConnection mConnection;
+        private InputStream mContent;
+
+        UrlConnectionResponse(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public int getStatusCode() {
+            try {
+                return mConnection.getResponseCode();
+            }
+            catch (IOException e) {
+                // already read by execute()
+                return -1;
+            }
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            String length = mConnection.getHeaderField("Content-Length");
+            try {
+                return (length != null) ? Long.parseLong(length.trim()) : -1;
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public synchronized InputStream getContent() throws IOException {
+            if (mContent == null) {
+                // the body of an error response only comes from the error stream
+                mContent = (getStatusCode() >= HttpURLConnection.HTTP_BAD_REQUEST)
+                        ? mConnection.getErrorStream() : mConnection.getInputStream();
+            }
+            return mContent;
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                InputStream content = getContent();
+                // closing the body, rather than disconnecting, keeps the connection in the pool
+                if (content != null)
+                    content.close();
+            }
+            catch (IOException e) {
+                mConnection.disconnect();
+            }
+        }
+    }
+}
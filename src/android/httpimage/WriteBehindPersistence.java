@@ -0,0 +1,314 @@
+package android.httpimage;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Persistence decorator that moves the writes of another PersistedBitmapCache off the calling
+ * thread.
+ * <p>
+ * storeData() only queues the bytes, a dedicated background thread writes them through the
+ * wrapped persistence in arrival order, handing over everything queued meanwhile in a single
+ * storeAll() call. Until an entry is written, lookups of its key are served from the queued bytes. The queue is bounded in bytes: once full, storeData() blocks until the
+ * writer catches up, so a burst of downloads can not pile up unbounded memory.
+ * <p>
+ * Wrap a FileSystemPersistence, which commits each file atomically, to get writes that neither
+ * hold up the download workers nor leave truncated files behind on a crash.
+ *
+ * @author abezzarg@gmail.com
+ */
+public class WriteBehindPersistence extends PersistedBitmapCache {
+
+    private static final String TAG = WriteBehindPersistence.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    /** max number of entries handed over to a single storeAll() */
+    private static final int MAX_BATCH_SIZE = 16;
+
+    private final PersistedBitmapCache mTarget;
+    private final int mMaxQueuedBytes;
+    // queued entries in arrival order, the ones being written stay here until they are on disk
+    private final LinkedHashMap<String, byte[]> mQueue = new LinkedHashMap<String, byte[]>();
+    private int mQueuedBytes;
+    private final LinkedHashMap<String, byte[]> mWriting = new LinkedHashMap<String, byte[]>();
+    // keys of the batch being written that were invalidated meanwhile
+    private final HashSet<String> mDiscarded = new HashSet<String>();
+    private final Thread mWriter;
+
+
+    public WriteBehindPersistence(PersistedBitmapCache target) {
+        this(target, DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+
+    /**
+     * @param target persistence the writes go to
+     * @param maxQueuedBytes number of bytes queued above which storeData() blocks
+     */
+    public WriteBehindPersistence(PersistedBitmapCache target, int maxQueuedBytes) {
+        mTarget = target;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mWriter = new Thread(TAG) {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        };
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+
+    public PersistedBitmapCache getTarget() {
+        return mTarget;
+    }
+
+
+    @Override
+    public void setDecodingPixelConstraint(int maxNumOfPixels) {
+        super.setDecodingPixelConstraint(maxNumOfPixels);
+        mTarget.setDecodingPixelConstraint(maxNumOfPixels);
+    }
+
+
+    @Override
+    public boolean exists(String key) {
+        return loadQueued(key) != null || mTarget.exists(key);
+    }
+
+
+    @Override
+    public Iterable<String> keys() {
+        Iterable<String> stored = mTarget.keys();
+        if (stored == null) {
+            return null;
+        }
+        ArrayList<String> keys = new ArrayList<String>();
+        for (String key : stored) {
+            keys.add(key);
+        }
+        synchronized (this) {
+            keys.addAll(mQueue.keySet());
+        }
+        return keys;
+    }
+
+
+    @Override
+    public void invalidate(String key) {
+        synchronized (this) {
+            discard(key);
+        }
+        mTarget.invalidate(key);
+    }
+
+
+    @Override
+    public void clear() {
+        synchronized (this) {
+            for (String key : new ArrayList<String>(mQueue.keySet())) {
+                discard(key);
+            }
+        }
+        mTarget.clear();
+    }
+
+
+    /**
+     * Drop a queued entry. If it is being written it is deleted again once written.
+     */
+    private void discard(String key) {
+        if (mWriting.containsKey(key)) {
+            mDiscarded.add(key);
+            return;
+        }
+        byte[] data = mQueue.remove(key);
+        if (data != null) {
+            mQueuedBytes -= data.length;
+            notifyAll();
+        }
+    }
+
+
+    @Override
+    public Bitmap loadData(String key) {
+        return loadData(key, 0, 0);
+    }
+
+
+    @Override
+    public Bitmap loadData(String key, int targetWidth, int targetHeight) {
+        byte[] queued = loadQueued(key);
+        if (queued != null) {
+            return BitmapUtil.decodeByteArray(queued, getDecodingPixelConstraint(), targetWidth, targetHeight);
+        }
+        return mTarget.loadData(key, targetWidth, targetHeight);
+    }
+
+
+    @Override
+    public byte[] loadBytes(String key) {
+        byte[] queued = loadQueued(key);
+        return (queued != null) ? queued : mTarget.loadBytes(key);
+    }
+
+
+    @Override
+    ByteBuffer loadPooledBytes(String key) {
+        byte[] queued = loadQueued(key);
+        if (queued == null) {
+            return mTarget.loadPooledBytes(key);
+        }
+        // the queued array is still to be written, the pool gets a copy
+        byte[] bytes = BitmapUtil.getByteArrayPool().get(queued.length);
+        System.arraycopy(queued, 0, bytes, 0, queued.length);
+        return ByteBuffer.wrap(bytes, 0, queued.length);
+    }
+
+
+    private synchronized byte[] loadQueued(String key) {
+        if (mDiscarded.contains(key)) {
+            return null;
+        }
+        return mQueue.get(key);
+    }
+
+
+    /**
+     * Queue data to be written, blocking while the queue is full.
+     * @param data byte[], never modified afterwards
+     */
+    @Override
+    public void storeData(String key, Object data) {
+        byte[] bytes = (byte[]) data;
+        synchronized (this) {
+            // an entry larger than the whole queue still goes through, alone
+            while (mQueuedBytes > 0 && mQueuedBytes + bytes.length > mMaxQueuedBytes) {
+                if(DEBUG) Log.v(TAG, "[storeData] queue full, waiting for the writer");
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            // written again after the write in progress
+            mDiscarded.remove(key);
+            byte[] previous = mQueue.put(key, bytes);
+            if (previous != null) {
+                mQueuedBytes -= previous.length;
+            }
+            mQueuedBytes += bytes.length;
+            notifyAll();
+        }
+    }
+
+
+    @Override
+    public File newTempFile(String key) {
+        return mTarget.newTempFile(key);
+    }
+
+
+    @Override
+    public void discardTempFile(File file) {
+        mTarget.discardTempFile(file);
+    }
+
+
+    /**
+     * Store a complete file straight through the wrapped persistence, it is already written. Data
+     * queued for the same key is dropped, and a write of it in progress waited for.
+     */
+    @Override
+    public void storeFile(String key, File file) {
+        synchronized (this) {
+            while (mWriting.containsKey(key)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    file.delete();
+                    return;
+                }
+            }
+            discard(key);
+        }
+        mTarget.storeFile(key, file);
+    }
+
+
+    /**
+     * Block until every entry queued so far is written.
+     */
+    public synchronized void flush() throws InterruptedException {
+        while (!mQueue.isEmpty()) {
+            wait();
+        }
+    }
+
+
+    public synchronized int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+
+    private void writeLoop() {
+        for (;;) {
+            synchronized (this) {
+                while (mQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                Iterator<Map.Entry<String, byte[]>> it = mQueue.entrySet().iterator();
+                while (it.hasNext() && mWriting.size() < MAX_BATCH_SIZE) {
+                    Map.Entry<String, byte[]> e = it.next();
+                    mWriting.put(e.getKey(), e.getValue());
+                }
+            }
+
+            try {
+                mTarget.storeAll(mWriting);
+            }
+            catch (Throwable e) {
+                Log.e(TAG, "[writeLoop] error writing " + mWriting.size() + " entries", e);
+            }
+
+            ArrayList<String> discarded;
+            synchronized (this) {
+                discarded = new ArrayList<String>(mDiscarded);
+                for (Map.Entry<String, byte[]> e : mWriting.entrySet()) {
+                    String key = e.getKey();
+                    if (mDiscarded.contains(key) || mQueue.get(key) == e.getValue()) {
+                        byte[] removed = mQueue.remove(key);
+                        if (removed != null) {
+                            mQueuedBytes -= removed.length;
+                        }
+                    }
+                    // else stored again meanwhile, the newer data is written on the next round
+                }
+                mWriting.clear();
+                mDiscarded.clear();
+                notifyAll();
+            }
+            for (String key : discarded) {
+                mTarget.invalidate(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package testapp.activity;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.httpimage.CacheKey;
+import android.httpimage.FileSystemPersistence;
+import android.httpimage.MemoryBitmapCache;
+import android.httpimage.MemoryCache;
+import android.httpimage.PackFilePersistence;
+import android.httpimage.PersistedBitmapCache;
+import android.httpimage.StripedMemoryBitmapCache;
+
+/**
+ * Measures the latency of memory cache hits on the calling thread while
+ * worker threads keep storing new bitmaps into the same cache, and the latency
+ * of disk cache lookups depending on the directory layout. Slow, run them off
+ * the UI thread.
+ */
+public class CacheBenchmark {
+
+	private static final int HOT_KEYS = 16;
+	private static final int BITMAP_SIDE = 48;
+	private static final int CACHE_ENTRIES = 64;
+
+	private static final int[] DISK_ENTRIES = { 1000, 10000, 100000 };
+	private static final int DISK_LOOKUPS = 2000;
+	private static final int DISK_ENTRY_SIZE = 256;
+
+	private static final int PACK_ENTRIES = 2000;
+	private static final int PACK_ENTRY_SIZE = 16 * 1024;
+
+
+	public static String runContention(int writers, long durationMillis) {
+		Bitmap bitmap = Bitmap.createBitmap(BITMAP_SIDE, BITMAP_SIDE, Config.RGB_565);
+		int budget = MemoryBitmapCache.sizeOf(bitmap) * CACHE_ENTRIES;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("UI hit latency, ").append(writers).append(" writers\n");
+		sb.append(measure("synchronized", new MemoryBitmapCache(budget), bitmap, writers, durationMillis));
+		sb.append(measure("striped", new StripedMemoryBitmapCache(budget, writers), bitmap, writers, durationMillis));
+		return sb.toString();
+	}
+
+
+	private static String measure(String name, final MemoryCache cache, final Bitmap bitmap,
+			int writers, long durationMillis) {
+
+		for (int i = 0; i < HOT_KEYS; i++) {
+			cache.storeData("hot" + i, bitmap);
+		}
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final CountDownLatch done = new CountDownLatch(writers);
+		for (int w = 0; w < writers; w++) {
+			final int id = w;
+			new Thread() {
+				public void run() {
+					int n = 0;
+					while (running.get()) {
+						cache.storeData("w" + id + "_" + (n++), bitmap);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+
+		String[] hotKeys = new String[HOT_KEYS];
+		for (int i = 0; i < HOT_KEYS; i++) {
+			hotKeys[i] = "hot" + i;
+		}
+		// only hits are timed, an evicted hot key is stored again as the UI would after a reload
+		long[] samples = new long[1 << 16];
+		int count = 0;
+		int misses = 0;
+		long end = System.currentTimeMillis() + durationMillis;
+		for (int i = 0; System.currentTimeMillis() < end && count < samples.length; i++) {
+			String key = hotKeys[i % HOT_KEYS];
+			long start = System.nanoTime();
+			Bitmap hit = cache.loadData(key);
+			long elapsed = System.nanoTime() - start;
+			if (hit != null) {
+				samples[count++] = elapsed;
+			} else {
+				misses++;
+				cache.storeData(key, bitmap);
+			}
+		}
+
+		running.set(false);
+		try {
+			done.await();
+		} catch (InterruptedException e) {}
+
+		if (count == 0) {
+			return name + ": no hit, " + misses + " misses\n";
+		}
+		Arrays.sort(samples, 0, count);
+		return name + ": hits=" + count + " hit ratio=" + (count * 100 / (count + misses)) + "%"
+				+ " p50=" + samples[count / 2] / 1000 + "us"
+				+ " p99=" + samples[count * 99 / 100] / 1000 + "us"
+				+ " max=" + samples[count - 1] / 1000 + "us\n";
+	}
+
+
+	/**
+	 * Look up and read random entries of a sharded FileSystemPersistence, and the same entries
+	 * of a flat directory the way the former flat layout did: File.exists() then a read. Slow,
+	 * run it off the UI thread.
+	 * @param dir scratch directory, emptied afterwards
+	 */
+	public static String runDiskLayout(File dir) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Disk lookup latency, exists + read ").append(DISK_ENTRY_SIZE).append(" bytes\n");
+		byte[] data = new byte[DISK_ENTRY_SIZE];
+
+		for (int n : DISK_ENTRIES) {
+			String[] keys = new String[n];
+			for (int i = 0; i < n; i++) {
+				keys[i] = CacheKey.forString("bench" + i).toString();
+			}
+
+			File flatDir = new File(dir, "flat");
+			String shardedDir = new File(dir, "sharded").getAbsolutePath();
+			FileSystemPersistence sharded = new FileSystemPersistence(shardedDir);
+			File[] flatFiles = new File[n];
+			try {
+				// plain unsynced writes, storeData() syncs every file and takes ages for 100k
+				flatDir.mkdirs();
+				for (int i = 0; i < n; i++) {
+					flatFiles[i] = new File(flatDir, keys[i]);
+					write(flatFiles[i], data);
+					File f = sharded.getFile(keys[i]);
+					f.getParentFile().mkdirs();
+					write(f, data);
+				}
+				// adopts the files on first use, not timed
+				sharded = new FileSystemPersistence(shardedDir);
+				sharded.setMaxSize(Long.MAX_VALUE);
+				sharded.exists(keys[0]);
+
+				sb.append(n).append(" entries\n");
+				sb.append(measureFlat("  flat", flatFiles, data));
+				sb.append(measurePersistenceLookups("  sharded", sharded, keys));
+			}
+			catch (IOException e) {
+				sb.append(n).append(" entries: ").append(e).append('\n');
+			}
+			finally {
+				for (File f : flatFiles) {
+					if (f != null) f.delete();
+				}
+				flatDir.delete();
+				sharded.clear();
+			}
+		}
+		return sb.toString();
+	}
+
+
+	private static String measureFlat(String name, File[] files, byte[] buffer) throws IOException {
+		Random random = new Random(0);
+		long[] samples = new long[DISK_LOOKUPS];
+		for (int i = 0; i < DISK_LOOKUPS; i++) {
+			File f = files[random.nextInt(files.length)];
+			long start = System.nanoTime();
+			if (f.exists()) {
+				FileInputStream fis = new FileInputStream(f);
+				try {
+					fis.read(buffer);
+				} finally {
+					fis.close();
+				}
+			}
+			samples[i] = System.nanoTime() - start;
+		}
+		return percentiles(name, samples, DISK_LOOKUPS);
+	}
+
+
+	private static String measurePersistenceLookups(String name, PersistedBitmapCache persistence, String[] keys)
+			throws IOException {
+		Random random = new Random(0);
+		long[] samples = new long[DISK_LOOKUPS];
+		for (int i = 0; i < DISK_LOOKUPS; i++) {
+			String key = keys[random.nextInt(keys.length)];
+			long start = System.nanoTime();
+			if (!persistence.exists(key) || persistence.loadBytes(key) == null) {
+				throw new IOException("entry missing: " + key);
+			}
+			samples[i] = System.nanoTime() - start;
+		}
+		return percentiles(name, samples, DISK_LOOKUPS);
+	}
+
+
+	private static String percentiles(String name, long[] samples, int count) {
+		Arrays.sort(samples, 0, count);
+		return name + ": p50=" + samples[count / 2] / 1000 + "us"
+				+ " p99=" + samples[count * 99 / 100] / 1000 + "us"
+				+ " max=" + samples[count - 1] / 1000 + "us\n";
+	}
+
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream fos = new FileOutputStream(f);
+		try {
+			fos.write(data);
+		} finally {
+			fos.close();
+		}
+	}
+
+
+	/**
+	 * Compare disk tier hits of the one-file-per-image layout with the pack files.
+	 * @param dir scratch directory, emptied afterwards
+	 */
+	public static String runPackFile(File dir) {
+		byte[] data = new byte[PACK_ENTRY_SIZE];
+		String[] keys = new String[PACK_ENTRIES];
+		for (int i = 0; i < PACK_ENTRIES; i++) {
+			keys[i] = CacheKey.forString("bench" + i).toString();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("Disk hit latency, ").append(PACK_ENTRIES).append(" x ")
+				.append(PACK_ENTRY_SIZE / 1024).append(" KB\n");
+		FileSystemPersistence files = new FileSystemPersistence(new File(dir, "files").getAbsolutePath());
+		files.setMaxSize(Long.MAX_VALUE);
+		sb.append(measurePersistence("  file per image", files, keys, data));
+		files.clear();
+		PackFilePersistence pack = new PackFilePersistence(new File(dir, "pack").getAbsolutePath());
+		pack.setMaxSize(Long.MAX_VALUE);
+		sb.append(measurePersistence("  pack files", pack, keys, data));
+		pack.clear();
+		return sb.toString();
+	}
+
+
+	private static String measurePersistence(String name, PersistedBitmapCache persistence, String[] keys, byte[] data) {
+		for (String key : keys) {
+			persistence.storeData(key, data);
+		}
+
+		Random random = new Random(0);
+		long[] samples = new long[DISK_LOOKUPS];
+		for (int i = 0; i < DISK_LOOKUPS; i++) {
+			String key = keys[random.nextInt(keys.length)];
+			long start = System.nanoTime();
+			persistence.loadBytes(key);
+			samples[i] = System.nanoTime() - start;
+		}
+
+		return percentiles(name, samples, DISK_LOOKUPS);
+	}
+}
@@ -0,0 +1,201 @@
+package testapp.activity;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.httpimage.DBImageTable;
+import android.httpimage.DBPersistence;
+import android.httpimage.FakeTransport;
+import android.httpimage.HttpImageManager;
+import android.httpimage.SyncHttpImageManagerWrapper;
+import android.httpimage.Transport;
+import android.net.Uri;
+
+/**
+ * On-device checks of the cache behaviours that need an Android runtime, run
+ * from the menu of TestActivity like the benchmarks. Each check reports OK, or
+ * FAILED with the first expectation that did not hold.
+ */
+public class CacheChecks {
+
+	private static final int ENTRY_SIZE = 1000;
+	// leaves the timestamps of successive steps apart
+	private static final long STEP_MILLIS = 5;
+
+
+	private static class CheckFailure extends Exception {
+		CheckFailure(String message) {
+			super(message);
+		}
+	}
+
+
+	private static void check(boolean condition, String expectation) throws CheckFailure {
+		if (!condition) {
+			throw new CheckFailure(expectation);
+		}
+	}
+
+
+	private static void step() {
+		try {
+			Thread.sleep(STEP_MILLIS);
+		} catch (InterruptedException e) {}
+	}
+
+
+	private static byte[] entry(int fill) {
+		byte[] data = new byte[ENTRY_SIZE];
+		Arrays.fill(data, (byte) fill);
+		return data;
+	}
+
+
+	/**
+	 * @return a PNG of size x size pixels, told apart from another size once decoded
+	 */
+	private static byte[] image(int size) {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888).compress(Bitmap.CompressFormat.PNG, 100, png);
+		return png.toByteArray();
+	}
+
+
+	/**
+	 * Load uri through the persistence and the network, the memory caches would skip the
+	 * revalidation.
+	 */
+	private static int loadWidth(HttpImageManager manager, Uri uri) {
+		manager.emptyCache();
+		Bitmap bitmap = new SyncHttpImageManagerWrapper(manager).syncLoadImage(uri);
+		return (bitmap != null) ? bitmap.getWidth() : -1;
+	}
+
+
+	/**
+	 * exists(), batched inserts, deferred NUSE/TIMESTAMP updates and eviction by SIZE of
+	 * DBPersistence, against a scratch database deleted afterwards.
+	 */
+	public static String runDBPersistence(Context context) {
+		String name = "checks-" + System.currentTimeMillis() + ".db";
+		DBPersistence db = new DBPersistence(context, name);
+		try {
+			db.setMaxSize(Long.MAX_VALUE);
+
+			Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+			batch.put("a", entry(1));
+			batch.put("b", entry(2));
+			batch.put("c", entry(3));
+			db.storeAll(batch);
+			check(db.exists("a") && db.exists("b") && db.exists("c"), "batched entries exist");
+			check(!db.exists("missing"), "unknown key does not exist");
+			check(db.getSize() == 3 * ENTRY_SIZE, "size is the sum of the batch, got " + db.getSize());
+			check(Arrays.equals(db.loadBytes("b"), entry(2)), "entry read back as stored");
+
+			step();
+			long readTime = System.currentTimeMillis();
+			db.loadBytes("a");
+			db.loadBytes("a");
+			step();
+			// written along with the deferred reads
+			db.storeData("d", entry(4));
+
+			// b and c are the least recently used, a was read since
+			db.setMaxSize(2 * ENTRY_SIZE);
+			check(!db.exists("b") && !db.exists("c"), "least recently used entries evicted");
+			check(db.exists("a") && db.exists("d"), "recently used entries kept");
+			check(db.getSize() == 2 * ENTRY_SIZE, "size within budget after eviction, got " + db.getSize());
+
+			db.close();
+			SQLiteDatabase raw = SQLiteDatabase.openDatabase(context.getDatabasePath(name).getPath(), null,
+					SQLiteDatabase.OPEN_READONLY);
+			try {
+				Cursor c = raw.query(DBImageTable.TABLE_NAME, new String[] { DBImageTable.NUSE, DBImageTable.TIMESTAMP },
+						DBImageTable.NAME + " = ?", new String[] { "a" }, null, null, null);
+				try {
+					check(c.moveToFirst(), "row of a present");
+					check(c.getLong(0) == 3, "NUSE counts the store and both reads, got " + c.getLong(0));
+					check(c.getLong(1) >= readTime, "TIMESTAMP is the time of the last read");
+				} finally {
+					c.close();
+				}
+			} finally {
+				raw.close();
+			}
+			return "DBPersistence: OK\n";
+		}
+		catch (CheckFailure e) {
+			return "DBPersistence: FAILED " + e.getMessage() + "\n";
+		}
+		finally {
+			db.close();
+			context.deleteDatabase(name);
+		}
+	}
+
+
+	/**
+	 * Revalidation of stale images by HttpImageManager against a FakeTransport: the conditional
+	 * request carries If-None-Match or If-Modified-Since, a 304 keeps the persisted image and a
+	 * 200 replaces it along with its validators. Runs on the manager of the app, under uris of
+	 * its own, and restores its transport and settings afterwards.
+	 */
+	public static String runRevalidation(HttpImageManager manager) {
+		Transport transport = manager.getTransport();
+		boolean staleWhileRevalidate = manager.isStaleWhileRevalidate();
+		FakeTransport fake = new FakeTransport();
+		manager.setTransport(fake);
+		// the revalidation is then done before the load completes
+		manager.setStaleWhileRevalidate(false);
+		try {
+			String base = "http://checks.invalid/" + System.currentTimeMillis();
+
+			Uri etagged = Uri.parse(base + "/etag.png");
+			Map<String, String> headers = new HashMap<String, String>();
+			headers.put("ETag", "\"v1\"");
+			headers.put("Cache-Control", "max-age=0");
+			fake.put(etagged, image(4), headers);
+			check(loadWidth(manager, etagged) == 4, "first load downloads the image");
+			check(!fake.getLastRequestHeaders().containsKey("If-None-Match"), "first request is not conditional");
+
+			int requests = fake.getRequestCount();
+			check(loadWidth(manager, etagged) == 4, "304 keeps the persisted image");
+			check(fake.getRequestCount() == requests + 1, "stale image revalidated with a single request");
+			check("\"v1\"".equals(fake.getLastRequestHeaders().get("If-None-Match")), "If-None-Match carries the ETag");
+
+			headers.put("ETag", "\"v2\"");
+			fake.put(etagged, image(8), headers);
+			check(loadWidth(manager, etagged) == 8, "200 replaces the persisted image");
+			check(loadWidth(manager, etagged) == 8, "replacement served once revalidated");
+			check("\"v2\"".equals(fake.getLastRequestHeaders().get("If-None-Match")), "ETag replaced along with the image");
+
+			Uri dated = Uri.parse(base + "/dated.png");
+			String lastModified = "Mon, 01 Jan 2024 00:00:00 GMT";
+			headers.clear();
+			headers.put("Last-Modified", lastModified);
+			headers.put("Cache-Control", "max-age=0");
+			fake.put(dated, image(4), headers);
+			check(loadWidth(manager, dated) == 4, "first load downloads the dated image");
+			requests = fake.getRequestCount();
+			check(loadWidth(manager, dated) == 4, "304 keeps the persisted dated image");
+			check(fake.getRequestCount() == requests + 1, "stale dated image revalidated with a single request");
+			check(lastModified.equals(fake.getLastRequestHeaders().get("If-Modified-Since")),
+					"If-Modified-Since carries the Last-Modified date");
+			return "Revalidation: OK\n";
+		}
+		catch (CheckFailure e) {
+			return "Revalidation: FAILED " + e.getMessage() + "\n";
+		}
+		finally {
+			manager.setTransport(transport);
+			manager.setStaleWhileRevalidate(staleWhileRevalidate);
+		}
+	}
+}
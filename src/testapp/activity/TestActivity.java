@@ -1,5 +1,6 @@
 package testapp.activity;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -58,6 +59,11 @@ public class TestActivity extends Activity {
     public boolean onCreateOptionsMenu(Menu menu) {
     	menu.addSubMenu(0, 0, 0, "Test sync loading");
     	menu.addSubMenu(0, 1, 0, "Test progressive loading");
+    	menu.addSubMenu(0, 2, 0, "Benchmark cache contention");
+    	menu.addSubMenu(0, 3, 0, "Benchmark disk layout");
+    	menu.addSubMenu(0, 4, 0, "Benchmark pack files");
+    	menu.addSubMenu(0, 5, 0, "Check DB persistence");
+    	menu.addSubMenu(0, 6, 0, "Check revalidation");
     	return true;
     }
 
@@ -101,6 +107,34 @@ public class TestActivity extends Activity {
     		startActivity(i);
     	}
     	
+    	else if ( id >= 2 && id <= 6) {
+    		
+    		final int run = id;
+    		final TextView textView = new TextView(this);
+    		textView.setText("Running, this takes a while...");
+    		new AlertDialog .Builder(this).setView(textView).create().show();
+    		new Thread() {
+    			public void run() {
+    				final String result;
+    				if (run == 2)
+    					result = CacheBenchmark.runContention(4, 1000);
+    				else if (run == 3)
+    					result = CacheBenchmark.runDiskLayout(new File(getCacheDir(), "layout-benchmark"));
+    				else if (run == 4)
+    					result = CacheBenchmark.runPackFile(new File(getCacheDir(), "pack-benchmark"));
+    				else if (run == 5)
+    					result = CacheChecks.runDBPersistence(TestActivity.this);
+    				else
+    					result = CacheChecks.runRevalidation(getHttpImageManager());
+    				runOnUiThread(new Runnable() {
+    					public void run() {
+    						textView.setText(result);
+    					}
+    				});
+    			}
+    		}.start();
+    	}
+    	
     	return false;
     }
 
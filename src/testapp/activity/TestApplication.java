@@ -13,8 +13,13 @@ public class TestApplication extends android.app.Application {
 
 		// init HttpImageManager manager.
 		
-		HttpImageManager.initialize(HttpImageManager.createDefaultMemoryCache(), new FileSystemPersistence(BASEDIR));
+		HttpImageManager.initialize(HttpImageManager.createDefaultMemoryCache(), 
+				new WriteBehindPersistence(new FileSystemPersistence(BASEDIR)));
 		mHttpImageManager= HttpImageManager.getInstance();
+
+		// shrink the memory caches when the system runs low or the app goes to the background
+		mHttpImageManager.registerMemoryCallbacks(this);
+		mHttpImageManager.setPersistVariants(true);
 	}
 
 	